@@ -0,0 +1,125 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Exposes the metrics of a registry like {@link io.prometheus.client.exporter.MetricsServlet}, but caps the number of
+ * concurrent collections. Requests exceeding that limit wait for a bounded amount of time, and are then either answered
+ * with the last successfully collected response or rejected with HTTP 503.
+ */
+class AdmissionControlServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final CollectorRegistry registry;
+    private final Semaphore permits;
+    private final Duration queueTimeout;
+    private final boolean serveStale;
+    private final Optional<Duration> defaultTimeout;
+    private final Duration timeoutOffset;
+    private final Counter rejected;
+
+    private volatile byte[] lastResponse;
+
+    AdmissionControlServlet(
+        String metricPrefix,
+        CollectorRegistry registry,
+        OptionalInt maxConcurrentScrapes,
+        Duration queueTimeout,
+        boolean serveStale,
+        Optional<Duration> defaultTimeout,
+        Duration timeoutOffset)
+    {
+        this.registry = requireNonNull(registry);
+        this.permits = maxConcurrentScrapes.isPresent() ? new Semaphore(maxConcurrentScrapes.getAsInt(), true) : null;
+        this.queueTimeout = requireNonNull(queueTimeout);
+        this.serveStale = serveStale;
+        this.defaultTimeout = requireNonNull(defaultTimeout);
+        this.timeoutOffset = requireNonNull(timeoutOffset);
+
+        this.rejected = Counter.build()
+                .name(metricPrefix + "_scrapes_rejected_total")
+                .help("Number of scrapes that exceeded the concurrency limit, by how they were answered.")
+                .labelNames("response")
+                .register(registry);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        // time spent waiting for admission counts towards the scrape timeout
+        final var deadline = ScrapeDeadline.of(req.getHeader(ScrapeDeadline.TIMEOUT_HEADER), defaultTimeout, timeoutOffset);
+        if (permits == null) {
+            respond(resp, ScrapeDeadline.call(deadline, this::collect));
+            return;
+        }
+
+        final boolean admitted;
+        try {
+            admitted = permits.tryAcquire(queueTimeout.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+
+        if (!admitted) {
+            final var stale = lastResponse;
+            if (serveStale && stale != null) {
+                rejected.labels("stale").inc();
+                resp.setHeader("Warning", "110 - \"Response is Stale\"");
+                respond(resp, stale);
+            } else {
+                rejected.labels("unavailable").inc();
+                resp.setHeader("Retry-After", "1");
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent scrapes");
+            }
+            return;
+        }
+
+        try {
+            respond(resp, ScrapeDeadline.call(deadline, this::collect));
+        } finally {
+            permits.release();
+        }
+    }
+
+    private byte[] collect() throws IOException {
+        final var event = new JfrEvents.Exposition();
+        event.begin();
+        final var buffer = new ByteArrayOutputStream();
+        try (final var writer = new OutputStreamWriter(buffer, UTF_8)) {
+            TextFormat.write004(writer, registry.metricFamilySamples());
+        }
+        final var response = buffer.toByteArray();
+        lastResponse = response;
+
+        event.bytes = response.length;
+        event.commit();
+        return response;
+    }
+
+    private static void respond(HttpServletResponse resp, byte[] body) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(TextFormat.CONTENT_TYPE_004);
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+}
@@ -0,0 +1,63 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.immutables.value.Value;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryGroup;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Job;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryGroup;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryOptions;
+
+/** Identifies a query on a connection of a job, e.g. in the cache. */
+@Value.Immutable(builder = false, prehash = true)
+abstract class CacheKey {
+    @Value.Parameter
+    abstract Job job();
+
+    @Value.Parameter
+    abstract QueryOptions query();
+
+    @Value.Parameter
+    abstract ConnectionDef connection();
+
+    /**
+     * A digest of the job's name, the connection and the query that stays the same across restarts, as opposed to
+     * {@link #hashCode()}.
+     */
+    @Value.Lazy
+    String digest() {
+        final MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        sha256.update(job().name().getBytes(StandardCharsets.UTF_8));
+        sha256.update((byte) 0);
+        sha256.update(connection().toString().getBytes(StandardCharsets.UTF_8));
+        sha256.update((byte) 0);
+        sha256.update(query().toString().getBytes(StandardCharsets.UTF_8));
+
+        final var digest = new StringBuilder();
+        for (final var b : sha256.digest()) {
+            digest.append(String.format("%02x", b));
+        }
+        return digest.toString();
+    }
+
+    static ImmutableCacheKey of(Job job, QueryOptions query, ConnectionDef connection) {
+        return ImmutableCacheKey.of(
+            ImmutableJob.copyOf(job),
+            query instanceof QueryGroup ? ImmutableQueryGroup.copyOf((QueryGroup) query)
+                : ImmutableQueryDef.copyOf((QueryDef) query),
+            ImmutableConnectionDef.copyOf(connection));
+    }
+}
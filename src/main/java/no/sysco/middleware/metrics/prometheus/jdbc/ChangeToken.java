@@ -0,0 +1,64 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+
+/**
+ * Reads the result of a change probe, i.e. a cheap query whose result changes whenever the result of an expensive query
+ * may have changed, into a token. The rows are digested as they are read, so that the token stays small however many
+ * rows and columns the probe returns.
+ */
+final class ChangeToken implements RowConsumer {
+
+    private final MessageDigest digest;
+    private SQLException error;
+
+    ChangeToken() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean add(RowCollector.Row row) {
+        try {
+            final var columns = row.columnCount();
+            for (int i = 1; i <= columns; i++) {
+                final var value = row.getString(i);
+                // NULL and empty strings are told apart, as are the column and row boundaries
+                if (value == null) {
+                    digest.update((byte) 1);
+                } else {
+                    digest.update((byte) 2);
+                    digest.update(value.getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                }
+            }
+            digest.update((byte) '\n');
+            return true;
+        } catch (SQLException e) {
+            error = e;
+            return false;
+        }
+    }
+
+    /**
+     * @return the token of all rows added so far
+     * @throws SQLException
+     *             if a row couldn't be read
+     */
+    synchronized String get() throws SQLException {
+        if (error != null) {
+            throw error;
+        }
+        final var token = new StringBuilder();
+        for (final var b : digest.digest()) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+}
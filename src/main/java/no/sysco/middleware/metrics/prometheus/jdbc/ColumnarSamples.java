@@ -0,0 +1,202 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+/**
+ * A compact, read-only representation of metric family samples, meant for results that are kept around for a while,
+ * e.g. cached ones.
+ *
+ * <p>
+ * Instead of a {@link Sample} object graph with label name and value lists per sample, samples are stored in columns:
+ * each sample references a schema (the sample name and its label names, shared by all samples with the same ones),
+ * its label values are indexes into a dictionary of distinct strings, and its value is stored in a {@code double}
+ * column. The columns can be kept off-heap. {@link Collector.MetricFamilySamples} are only materialized when the
+ * elements of this list are accessed, i.e. at exposition time.
+ */
+final class ColumnarSamples extends AbstractList<Collector.MetricFamilySamples> {
+
+    private final String[] familyNames;
+    private final Collector.Type[] familyTypes;
+    private final String[] familyHelps;
+    /** Index of the first sample of each family, plus the total number of samples. */
+    private final int[] familyOffsets;
+
+    private final String[] schemaSampleNames;
+    private final List<List<String>> schemaLabelNames;
+
+    private final String[] dictionary;
+
+    private final IntBuffer sampleSchemas;
+    /** Index of the first label value of each sample, plus the total number of label values. */
+    private final IntBuffer labelValueOffsets;
+    private final IntBuffer labelValues;
+    private final DoubleBuffer values;
+
+    private ColumnarSamples(Builder builder, boolean offHeap) {
+        this.familyNames = builder.familyNames.toArray(new String[0]);
+        this.familyTypes = builder.familyTypes.toArray(new Collector.Type[0]);
+        this.familyHelps = builder.familyHelps.toArray(new String[0]);
+        this.familyOffsets = Arrays.copyOf(builder.familyOffsets, builder.familyCount + 1);
+        this.schemaSampleNames = builder.schemaSampleNames.toArray(new String[0]);
+        this.schemaLabelNames = List.copyOf(builder.schemaLabelNames);
+        this.dictionary = builder.dictionary.toArray(new String[0]);
+        this.sampleSchemas = ints(builder.sampleSchemas, builder.sampleCount, offHeap);
+        this.labelValueOffsets = ints(builder.labelValueOffsets, builder.sampleCount + 1, offHeap);
+        this.labelValues = ints(builder.labelValues, builder.labelValueCount, offHeap);
+        this.values = doubles(builder.values, builder.sampleCount, offHeap);
+    }
+
+    /**
+     * Converts metric family samples to their columnar representation.
+     *
+     * @param familySamples
+     *            the samples to convert
+     * @param offHeap
+     *            whether to keep the columns in direct buffers instead of on the Java heap
+     */
+    static ColumnarSamples of(List<Collector.MetricFamilySamples> familySamples, boolean offHeap) {
+        if (familySamples instanceof ColumnarSamples && ((ColumnarSamples) familySamples).isOffHeap() == offHeap) {
+            return (ColumnarSamples) familySamples;
+        }
+
+        final var builder = new Builder();
+        familySamples.forEach(builder::add);
+        return new ColumnarSamples(builder, offHeap);
+    }
+
+    boolean isOffHeap() {
+        return values.isDirect();
+    }
+
+    /** Total number of samples in all families. */
+    int sampleCount() {
+        return familyOffsets[familyOffsets.length - 1];
+    }
+
+    @Override
+    public Collector.MetricFamilySamples get(int index) {
+        final var from = familyOffsets[index];
+        final var to = familyOffsets[index + 1];
+        final var samples = new ArrayList<Sample>(to - from);
+        for (int sample = from; sample < to; sample++) {
+            final var schema = sampleSchemas.get(sample);
+            final var labelFrom = labelValueOffsets.get(sample);
+            final var labelTo = labelValueOffsets.get(sample + 1);
+            final var sampleLabelValues = new String[labelTo - labelFrom];
+            for (int label = labelFrom; label < labelTo; label++) {
+                sampleLabelValues[label - labelFrom] = dictionary[labelValues.get(label)];
+            }
+            samples.add(
+                new Sample(
+                    schemaSampleNames[schema],
+                    schemaLabelNames.get(schema),
+                    Arrays.asList(sampleLabelValues),
+                    values.get(sample)));
+        }
+        return new Collector.MetricFamilySamples(familyNames[index], familyTypes[index], familyHelps[index], samples);
+    }
+
+    @Override
+    public int size() {
+        return familyNames.length;
+    }
+
+    private static IntBuffer ints(int[] values, int length, boolean offHeap) {
+        if (!offHeap) {
+            return IntBuffer.wrap(Arrays.copyOf(values, length));
+        }
+        final var buffer = ByteBuffer.allocateDirect(length * Integer.BYTES).asIntBuffer();
+        buffer.put(values, 0, length).flip();
+        return buffer;
+    }
+
+    private static DoubleBuffer doubles(double[] values, int length, boolean offHeap) {
+        if (!offHeap) {
+            return DoubleBuffer.wrap(Arrays.copyOf(values, length));
+        }
+        final var buffer = ByteBuffer.allocateDirect(length * Double.BYTES).asDoubleBuffer();
+        buffer.put(values, 0, length).flip();
+        return buffer;
+    }
+
+    private static final class Builder {
+        final List<String> familyNames = new ArrayList<>();
+        final List<Collector.Type> familyTypes = new ArrayList<>();
+        final List<String> familyHelps = new ArrayList<>();
+        int[] familyOffsets = new int[8];
+        int familyCount;
+
+        final Map<List<String>, Integer> schemaIds = new HashMap<>();
+        final List<String> schemaSampleNames = new ArrayList<>();
+        final List<List<String>> schemaLabelNames = new ArrayList<>();
+
+        final Map<String, Integer> dictionaryIds = new HashMap<>();
+        final List<String> dictionary = new ArrayList<>();
+
+        int[] sampleSchemas = new int[64];
+        int[] labelValueOffsets = new int[65];
+        double[] values = new double[64];
+        int sampleCount;
+
+        int[] labelValues = new int[256];
+        int labelValueCount;
+
+        void add(Collector.MetricFamilySamples family) {
+            familyNames.add(family.name);
+            familyTypes.add(family.type);
+            familyHelps.add(family.help);
+            if (familyCount + 1 >= familyOffsets.length) {
+                familyOffsets = Arrays.copyOf(familyOffsets, familyOffsets.length * 2);
+            }
+            familyOffsets[familyCount++] = sampleCount;
+            family.samples.forEach(this::add);
+            familyOffsets[familyCount] = sampleCount;
+        }
+
+        private void add(Sample sample) {
+            if (sampleCount == values.length) {
+                sampleSchemas = Arrays.copyOf(sampleSchemas, sampleCount * 2);
+                labelValueOffsets = Arrays.copyOf(labelValueOffsets, sampleCount * 2 + 1);
+                values = Arrays.copyOf(values, sampleCount * 2);
+            }
+            sampleSchemas[sampleCount] = schemaOf(sample);
+            values[sampleCount] = sample.value;
+            labelValueOffsets[sampleCount] = labelValueCount;
+
+            for (final var labelValue : sample.labelValues) {
+                if (labelValueCount == labelValues.length) {
+                    labelValues = Arrays.copyOf(labelValues, labelValueCount * 2);
+                }
+                labelValues[labelValueCount++] = dictionaryIds.computeIfAbsent(labelValue, v -> {
+                    dictionary.add(v);
+                    return dictionary.size() - 1;
+                });
+            }
+
+            sampleCount++;
+            labelValueOffsets[sampleCount] = labelValueCount;
+        }
+
+        private int schemaOf(Sample sample) {
+            final var key = new ArrayList<String>(sample.labelNames.size() + 1);
+            key.add(sample.name);
+            key.addAll(sample.labelNames);
+            return schemaIds.computeIfAbsent(key, k -> {
+                schemaSampleNames.add(sample.name);
+                schemaLabelNames.add(List.copyOf(sample.labelNames));
+                return schemaSampleNames.size() - 1;
+            });
+        }
+    }
+}
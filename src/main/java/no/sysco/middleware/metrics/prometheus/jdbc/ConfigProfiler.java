@@ -0,0 +1,320 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.QueryTask;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Config;
+
+/**
+ * Measures what a configuration costs before it's deployed: runs the queries of all jobs a number of times via the
+ * exporter's own code path, bypassing the cache, and prints latency and size of each query per connection. Fails if a
+ * query exceeds one of the given budgets, or fails itself.
+ *
+ * <p>
+ * Started via {@code WebServer --profile <config> [options]}. Modules are not profiled, as they need a target.
+ */
+final class ConfigProfiler {
+
+    static final String USAGE = "Usage: WebServer --profile <yaml configuration file or directory> [--iterations N]"
+        + " [--max-p95-seconds S] [--max-samples N] [--max-bytes N]";
+
+    /** Exit code if a query exceeds a budget or fails. */
+    static final int BUDGET_EXCEEDED = 2;
+
+    private static final String ROW_FORMAT = "%-20s %-30s %9s %9s %9s %8s %8s %-24s %10s %6s  %s%n";
+
+    private final Path configSource;
+    private final int iterations;
+    private final Optional<Duration> maxP95;
+    private final OptionalLong maxSamples;
+    private final OptionalLong maxBytes;
+
+    /** Profiles by query task, in the order they have first been executed. */
+    private final Map<QueryTask, Profile> profiles = Collections.synchronizedMap(new LinkedHashMap<>());
+
+    private ConfigProfiler(
+        Path configSource,
+        int iterations,
+        Optional<Duration> maxP95,
+        OptionalLong maxSamples,
+        OptionalLong maxBytes)
+    {
+        this.configSource = configSource;
+        this.iterations = iterations;
+        this.maxP95 = maxP95;
+        this.maxSamples = maxSamples;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Profiles a configuration and prints the results.
+     *
+     * @param args
+     *            the configuration followed by options, i.e. the command line arguments after {@code --profile}
+     * @return the exit code: {@code 0} if all queries succeeded within their budgets, {@code 1} on invalid arguments
+     *         or configuration, {@value #BUDGET_EXCEEDED} otherwise
+     */
+    static int run(String metricPrefix, ExporterSettings settings, String[] args, PrintStream out) {
+        final ConfigProfiler profiler;
+        try {
+            profiler = parse(args);
+        } catch (IllegalArgumentException e) {
+            out.println(e.getMessage());
+            out.println(USAGE);
+            return 1;
+        }
+
+        final List<JdbcConfig> configs;
+        try {
+            configs = profiler.loadConfigs(metricPrefix, settings);
+        } catch (IOException | RuntimeException e) {
+            out.println("Invalid configuration: " + e.getMessage());
+            return 1;
+        }
+
+        for (int i = 0; i < profiler.iterations; i++) {
+            for (final var config : configs) {
+                config.profile(profiler::record);
+            }
+        }
+        return profiler.report(out);
+    }
+
+    private static ConfigProfiler parse(String[] args) {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Missing configuration");
+        }
+        var iterations = 10;
+        var maxP95 = Optional.<Duration> empty();
+        var maxSamples = OptionalLong.empty();
+        var maxBytes = OptionalLong.empty();
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing value of " + args[i]);
+            }
+            final var value = args[i + 1];
+            try {
+                switch (args[i]) {
+                    case "--iterations":
+                        iterations = Integer.parseInt(value);
+                        break;
+                    case "--max-p95-seconds":
+                        maxP95 = Optional.of(Duration.ofNanos((long) (Double.parseDouble(value) * 1e9)));
+                        break;
+                    case "--max-samples":
+                        maxSamples = OptionalLong.of(Long.parseLong(value));
+                        break;
+                    case "--max-bytes":
+                        maxBytes = OptionalLong.of(Long.parseLong(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("Invalid value of %s: %s", args[i], value), e);
+            }
+        }
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iterations must be positive: " + iterations);
+        }
+        return new ConfigProfiler(Paths.get(args[0]), iterations, maxP95, maxSamples, maxBytes);
+    }
+
+    private List<JdbcConfig> loadConfigs(String metricPrefix, ExporterSettings settings) throws IOException {
+        // nothing measured here ends up in the exporter's own metrics
+        final var registry = new CollectorRegistry();
+        final var statistics = new QueryStatistics(metricPrefix);
+        final var governor = new DatabaseGovernor(metricPrefix, settings, registry);
+        final var cache = new SampleCache(metricPrefix, settings, registry);
+        final var executor = new QueryExecutor(metricPrefix, settings, registry);
+        final var renderer = new FreemarkerOsEnvRenderer();
+
+        final var configs = new ArrayList<JdbcConfig>();
+        try (final var files = Files.walk(configSource)) {
+            for (final var file : files.filter(Files::isRegularFile).sorted().collect(toList())) {
+                try (final var configData = Files.newInputStream(file)) {
+                    configs.add(
+                        new JdbcConfig(
+                            metricPrefix,
+                            Config.parseYaml(configData),
+                            file.toString(),
+                            ConnectionProvider.DRIVER_MANAGER,
+                            renderer,
+                            Clock.systemUTC(),
+                            settings,
+                            SnapshotStore.NONE,
+                            statistics,
+                            governor,
+                            cache,
+                            executor));
+                }
+            }
+        }
+        if (configs.isEmpty()) {
+            throw new IllegalArgumentException("No configuration in " + configSource);
+        }
+        return configs;
+    }
+
+    private void record(QueryTask task, SampleResult result) {
+        profiles.computeIfAbsent(task, t -> new Profile()).record(result);
+    }
+
+    private int report(PrintStream out) {
+        final List<Map.Entry<QueryTask, Profile>> entries;
+        synchronized (profiles) {
+            entries = new ArrayList<>(profiles.entrySet());
+        }
+
+        out.printf(
+            ROW_FORMAT,
+            "JOB",
+            "QUERY",
+            "P50",
+            "P95",
+            "MAX",
+            "ROWS",
+            "SAMPLES",
+            "TOP LABEL",
+            "BYTES",
+            "ERRORS",
+            "CONNECTION");
+        final var breaches = new ArrayList<String>();
+        for (final var entry : entries) {
+            final var task = entry.getKey();
+            final var profile = entry.getValue();
+            final var query = String.format(
+                "%s/%s on %s",
+                task.cacheKey.job().name(),
+                task.query.name(),
+                ConnectionUrls.redact(task.cacheKey.connection().url()));
+            synchronized (profile) {
+                final var p95 = profile.latencies.percentile(95);
+                out.printf(
+                    ROW_FORMAT,
+                    task.cacheKey.job().name(),
+                    task.query.name(),
+                    seconds(profile.latencies.percentile(50)),
+                    seconds(p95),
+                    seconds(profile.max),
+                    profile.rows,
+                    profile.samples,
+                    profile.topLabel,
+                    profile.bytes,
+                    profile.errors,
+                    ConnectionUrls.redact(task.cacheKey.connection().url()));
+
+                if (maxP95.isPresent() && p95.compareTo(maxP95.get()) > 0) {
+                    breaches.add(String.format("%s: p95 of %ss exceeds %ss", query, seconds(p95), seconds(maxP95.get())));
+                }
+                if (maxSamples.isPresent() && profile.samples > maxSamples.getAsLong()) {
+                    breaches.add(String.format("%s: %d samples exceed %d", query, profile.samples, maxSamples.getAsLong()));
+                }
+                if (maxBytes.isPresent() && profile.bytes > maxBytes.getAsLong()) {
+                    breaches.add(String.format("%s: %d bytes exceed %d", query, profile.bytes, maxBytes.getAsLong()));
+                }
+                if (profile.errors > 0) {
+                    breaches.add(
+                        String.format(
+                            "%s: %d of %d executions failed: %s",
+                            query,
+                            profile.errors,
+                            profile.executions,
+                            profile.lastError));
+                }
+            }
+        }
+
+        if (breaches.isEmpty()) {
+            return 0;
+        }
+        out.println();
+        breaches.forEach(out::println);
+        return BUDGET_EXCEEDED;
+    }
+
+    private static String seconds(Duration duration) {
+        return String.format("%.3f", duration.toNanos() / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    /** What has been measured of a query so far, the largest result of all executions in terms of size. */
+    private static final class Profile {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        Duration max = Duration.ZERO;
+        long executions;
+        long errors;
+        String lastError = "";
+        long rows;
+        long samples;
+        long bytes;
+        String topLabel = "";
+
+        synchronized void record(SampleResult result) {
+            executions++;
+            latencies.record(result.scrapeDuration);
+            if (result.scrapeDuration.compareTo(max) > 0) {
+                max = result.scrapeDuration;
+            }
+            if (result.error.isPresent()) {
+                errors++;
+                lastError = result.error.get().toString();
+                return;
+            }
+
+            rows = Math.max(rows, result.rows);
+            samples = Math.max(samples, result.samples.stream().mapToLong(family -> family.samples.size()).sum());
+            final var writer = new StringWriter();
+            try {
+                TextFormat.write004(writer, Collections.enumeration(result.samples));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            bytes = Math.max(bytes, writer.toString().getBytes(UTF_8).length);
+            topLabel = topLabel(result.samples).orElse(topLabel);
+        }
+
+        /** The label with the most distinct values, ignoring the ones of histogram buckets and summary quantiles. */
+        private static Optional<String> topLabel(List<Collector.MetricFamilySamples> families) {
+            final var values = new HashMap<String, Set<String>>();
+            for (final var family : families) {
+                for (final var sample : family.samples) {
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        final var name = sample.labelNames.get(i);
+                        if (!name.equals("le") && !name.equals("quantile")) {
+                            values.computeIfAbsent(name, n -> new HashSet<>()).add(sample.labelValues.get(i));
+                        }
+                    }
+                }
+            }
+            return values.entrySet()
+                .stream()
+                .max(Comparator.comparingInt(entry -> entry.getValue().size()))
+                .map(entry -> entry.getKey() + "=" + entry.getValue().size());
+        }
+    }
+}
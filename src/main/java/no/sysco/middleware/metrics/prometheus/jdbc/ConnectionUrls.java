@@ -0,0 +1,24 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.util.regex.Pattern;
+
+/** Utilities for JDBC connection URLs. */
+final class ConnectionUrls {
+
+    private static final Pattern USER_INFO = Pattern.compile("(?<=//)[^/@?;]*@");
+    private static final Pattern SECRET_PARAMETERS =
+        Pattern.compile("(?i)((?:password|passwd|pwd|secret|token)[^=;&?]*=)[^;&]*");
+
+    private ConnectionUrls() {
+        // static utility class
+    }
+
+    /**
+     * Removes credentials from a JDBC URL, i.e. user info like {@code //user:pass@host} and the values of parameters
+     * that look like passwords, so that the URL can be logged or used as a label value.
+     */
+    static String redact(String url) {
+        final var withoutUserInfo = USER_INFO.matcher(url).replaceFirst("***@");
+        return SECRET_PARAMETERS.matcher(withoutUserInfo).replaceAll("$1***");
+    }
+}
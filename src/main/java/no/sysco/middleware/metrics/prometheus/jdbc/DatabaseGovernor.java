@@ -0,0 +1,248 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.sql.SQLTransientException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Limits the load all jobs of all configuration files put on a single database, identified by its rendered JDBC URL.
+ *
+ * <p>
+ * Each database may have a maximum number of queries running at the same time and a maximum rate of queries per
+ * second, enforced by a token bucket that allows bursts of up to one second worth of queries. Queries exceeding
+ * either limit wait in arrival order for up to the configured queue timeout and are rejected afterwards.
+ *
+ * <p>
+ * The limits of a database, and its metric labels, are discarded once no query has run on it for the idle timeout, so
+ * that probing ever new targets doesn't pile them up.
+ */
+final class DatabaseGovernor {
+
+    /** Permission to run a query, to be closed when the query is done. */
+    interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final Permit UNLIMITED = () -> {};
+
+    /** Minimum time between two looks for idle databases. */
+    private static final Duration EVICTION_INTERVAL = Duration.ofSeconds(1);
+
+    private final OptionalInt maxConcurrentQueries;
+    private final double maxQueriesPerSecond;
+    private final Duration queueTimeout;
+    private final Duration idleTimeout;
+    private final Clock clock;
+
+    /** Limits by URL. Their users and last use are only accessed while computing their mapping. */
+    private final Map<String, Limits> databases = new ConcurrentHashMap<>();
+    private final AtomicReference<Instant> lastEviction;
+
+    private final Histogram waitTime;
+    private final Counter rejections;
+
+    DatabaseGovernor(String metricPrefix, ExporterSettings settings, CollectorRegistry registry) {
+        this(metricPrefix, settings, registry, Clock.systemUTC());
+    }
+
+    DatabaseGovernor(String metricPrefix, ExporterSettings settings, CollectorRegistry registry, Clock clock) {
+        this.maxConcurrentQueries = settings.dbMaxConcurrentQueries();
+        this.maxQueriesPerSecond = settings.dbMaxQueriesPerSecond().orElse(Double.POSITIVE_INFINITY);
+        this.queueTimeout = settings.dbQueueTimeout();
+        this.idleTimeout = settings.dbIdleTimeout();
+        this.clock = requireNonNull(clock);
+        this.lastEviction = new AtomicReference<>(clock.instant());
+
+        this.waitTime = Histogram.build()
+                .name(metricPrefix + "_db_governor_wait_seconds")
+                .help("Time queries waited for the database governor, in seconds.")
+                .labelNames("database")
+                .register(registry);
+        this.rejections = Counter.build()
+                .name(metricPrefix + "_db_governor_rejections_total")
+                .help("Number of queries rejected by the database governor.")
+                .labelNames("database", "reason")
+                .register(registry);
+    }
+
+    boolean isEnabled() {
+        return maxConcurrentQueries.isPresent() || Double.isFinite(maxQueriesPerSecond);
+    }
+
+    /**
+     * Waits until a query may run on the given database.
+     *
+     * @param url
+     *            the rendered JDBC URL of the database
+     * @throws SQLTransientException
+     *             if the query had to wait longer than the queue timeout
+     * @throws InterruptedException
+     *             if the current thread has been interrupted while waiting
+     */
+    Permit acquire(String url) throws SQLTransientException, InterruptedException {
+        if (!isEnabled()) {
+            return UNLIMITED;
+        }
+
+        evictIdle(clock.instant());
+        final var limits = databases.compute(url, (key, existing) -> {
+            final var entered = existing != null ? existing : new Limits(key);
+            entered.users++;
+            return entered;
+        });
+        try {
+            final var startNanos = System.nanoTime();
+            final var deadlineNanos = startNanos + queueTimeout.toNanos();
+
+            if (limits.concurrency != null
+                && !limits.concurrency.tryAcquire(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS))
+            {
+                throw reject(limits, "concurrency", startNanos);
+            }
+
+            final var delayNanos = limits.rate.reserve(System.nanoTime(), deadlineNanos);
+            if (delayNanos < 0) {
+                limits.release();
+                throw reject(limits, "rate", startNanos);
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(delayNanos);
+            } catch (InterruptedException e) {
+                limits.release();
+                throw e;
+            }
+
+            waitTime.labels(limits.label).observe(seconds(System.nanoTime() - startNanos));
+        } catch (SQLTransientException | InterruptedException | RuntimeException e) {
+            leave(limits);
+            throw e;
+        }
+        return () -> {
+            limits.release();
+            leave(limits);
+        };
+    }
+
+    /** Number of databases that currently have limits. */
+    int databaseCount() {
+        return databases.size();
+    }
+
+    private void leave(Limits limits) {
+        databases.computeIfPresent(limits.url, (key, left) -> {
+            left.users--;
+            left.lastUsed = clock.instant();
+            return left;
+        });
+    }
+
+    /** Discards the limits of databases that nobody has used for the idle timeout, at most once per interval. */
+    private void evictIdle(Instant now) {
+        final var last = lastEviction.get();
+        if (now.isBefore(last.plus(EVICTION_INTERVAL)) || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (final var url : databases.keySet()) {
+            databases.computeIfPresent(url, (key, limits) -> {
+                if (limits.users > 0 || !limits.lastUsed.plus(idleTimeout).isBefore(now)) {
+                    return limits;
+                }
+                waitTime.remove(limits.label);
+                rejections.remove(limits.label, "concurrency");
+                rejections.remove(limits.label, "rate");
+                return null;
+            });
+        }
+    }
+
+    private SQLTransientException reject(Limits limits, String reason, long startNanos) {
+        waitTime.labels(limits.label).observe(seconds(System.nanoTime() - startNanos));
+        rejections.labels(limits.label, reason).inc();
+        return new SQLTransientException(
+            String.format("Database governor rejected query on %s, %s limit exceeded", limits.label, reason));
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private final class Limits {
+        final String url;
+        final String label;
+        final Semaphore concurrency;
+        final TokenBucket rate = new TokenBucket(maxQueriesPerSecond);
+
+        /** Number of queries waiting for or holding a permit. */
+        int users;
+        Instant lastUsed = clock.instant();
+
+        Limits(String url) {
+            this.url = requireNonNull(url);
+            this.label = ConnectionUrls.redact(url);
+            this.concurrency = maxConcurrentQueries.isPresent() ? new Semaphore(maxConcurrentQueries.getAsInt(), true) : null;
+        }
+
+        void release() {
+            if (concurrency != null) {
+                concurrency.release();
+            }
+        }
+    }
+
+    /**
+     * A token bucket that hands out tokens in advance: a caller that has to wait reserves the next token that will
+     * become available, so waiting callers are served in arrival order.
+     */
+    static final class TokenBucket {
+        private final double tokensPerNano;
+        private final double capacity;
+
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        TokenBucket(double tokensPerSecond) {
+            this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, tokensPerSecond);
+            this.tokens = capacity;
+        }
+
+        /**
+         * Takes a token.
+         *
+         * @return how long to wait until the token may be used, in nanoseconds, or a negative value if the token would
+         *         only become available after the deadline, in which case no token is taken
+         */
+        synchronized long reserve(long nowNanos, long deadlineNanos) {
+            if (Double.isInfinite(tokensPerNano)) {
+                return 0;
+            }
+
+            if (nowNanos > lastRefillNanos) {
+                tokens = Math.min(capacity, tokens + (nowNanos - lastRefillNanos) * tokensPerNano);
+                lastRefillNanos = nowNanos;
+            }
+
+            final var delayNanos = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+            if (nowNanos + delayNanos > deadlineNanos && delayNanos > 0) {
+                return -1;
+            }
+
+            tokens--;
+            return delayNanos;
+        }
+    }
+}
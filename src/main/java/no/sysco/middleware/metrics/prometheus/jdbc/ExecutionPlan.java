@@ -0,0 +1,193 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Config;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryGroup;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Job;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.MetricOptions;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Partitions;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryGroup;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryOptions;
+
+/**
+ * A configuration compiled into everything a scrape needs, so that scrapes only execute it: query references are
+ * resolved, metric names, label names and help texts are precomputed, and the queries and query groups of each job are
+ * grouped by connection into tasks. The cache key and statistics of each task, i.e. a query on a connection, are looked
+ * up once.
+ */
+final class ExecutionPlan {
+
+    final List<JobPlan> jobs;
+    /** Modules by name. */
+    final Map<String, JobPlan> modules;
+
+    private ExecutionPlan(List<JobPlan> jobs, Map<String, JobPlan> modules) {
+        this.jobs = List.copyOf(jobs);
+        this.modules = Map.copyOf(modules);
+    }
+
+    static ExecutionPlan compile(String prefix, Config config, String source, QueryStatistics statistics) {
+        final var compiler = new Compiler(prefix, config, source, statistics);
+        final var jobs = config.jobs().stream().map(compiler::compile).collect(toList());
+        final var modules = config.modules().stream().map(compiler::compile).collect(toMap(job -> job.name, job -> job));
+        return new ExecutionPlan(jobs, modules);
+    }
+
+    private static final class Compiler {
+        final String prefix;
+        final Config config;
+        final String source;
+        final QueryStatistics statistics;
+
+        Compiler(String prefix, Config config, String source, QueryStatistics statistics) {
+            this.prefix = prefix;
+            this.config = config;
+            this.source = source;
+            this.statistics = statistics;
+        }
+
+        JobPlan compile(Job job) {
+            final var immutableJob = ImmutableJob.copyOf(job);
+            final var connections = new ArrayList<ConnectionPlan>();
+            for (final var connDef : job.connections()) {
+                final var immutableConnDef = ImmutableConnectionDef.copyOf(connDef);
+                final var tasks = new ArrayList<QueryTask>();
+                for (final var query : job.allQueries()) {
+                    final QueryOptions immutableQuery;
+                    final var metrics = new ArrayList<MetricPlan>();
+                    if (query instanceof QueryGroup) {
+                        final var group = ImmutableQueryGroup.copyOf((QueryGroup) query);
+                        group.metrics().forEach(metricDef -> metrics.add(new MetricPlan(prefix, metricDef)));
+                        immutableQuery = group;
+                    } else {
+                        final var queryDef = ImmutableQueryDef.copyOf((QueryDef) query);
+                        metrics.add(new MetricPlan(prefix, queryDef));
+                        immutableQuery = queryDef;
+                    }
+
+                    final var cacheKey = ImmutableCacheKey.of(immutableJob, immutableQuery, immutableConnDef);
+                    tasks.add(
+                        new QueryTask(
+                            immutableQuery,
+                            query.query().resolve(config.queries()::get),
+                            metrics,
+                            cacheKey,
+                            job.name() + '\0' + query.name() + '\0' + connDef.url(),
+                            statistics.get(cacheKey, source)));
+                }
+                connections.add(new ConnectionPlan(immutableConnDef, tasks));
+            }
+            // all connections run the same queries
+            final var aggregator = new SampleAggregator(
+                prefix,
+                connections.get(0).tasks.stream().flatMap(task -> task.metrics.stream()).collect(toList()));
+            return new JobPlan(immutableJob, connections, aggregator);
+        }
+    }
+
+    static final class JobPlan {
+        final Job job;
+        final String name;
+        final List<ConnectionPlan> connections;
+        /** Combines the samples of all connections. */
+        final SampleAggregator aggregator;
+        /** Number of queries run on each connection. */
+        final int queryCount;
+
+        JobPlan(Job job, List<ConnectionPlan> connections, SampleAggregator aggregator) {
+            this.job = requireNonNull(job);
+            this.name = job.name();
+            this.connections = List.copyOf(connections);
+            this.aggregator = requireNonNull(aggregator);
+            this.queryCount = job.allQueries().size();
+        }
+    }
+
+    static final class ConnectionPlan {
+        final ConnectionDef connDef;
+        final List<QueryTask> tasks;
+
+        ConnectionPlan(ConnectionDef connDef, List<QueryTask> tasks) {
+            this.connDef = requireNonNull(connDef);
+            this.tasks = List.copyOf(tasks);
+        }
+    }
+
+    /** A query to be run on a single connection. */
+    static final class QueryTask {
+        final QueryOptions query;
+        /** The query with references resolved, but not yet rendered. */
+        final String queryTemplate;
+        /** The metrics collected from each row of the query result. */
+        final List<MetricPlan> metrics;
+        final ImmutableCacheKey cacheKey;
+        /** The template variables of each partition of the query, empty if it isn't partitioned. */
+        final List<Map<String, String>> partitions;
+        /** Identifies the task when {@linkplain Jitter spreading} its refreshes. */
+        final String phaseKey;
+        final QueryStatistics.Entry stats;
+
+        QueryTask(
+            QueryOptions query,
+            String queryTemplate,
+            List<MetricPlan> metrics,
+            ImmutableCacheKey cacheKey,
+            String phaseKey,
+            QueryStatistics.Entry stats)
+        {
+            this.query = requireNonNull(query);
+            this.queryTemplate = requireNonNull(queryTemplate);
+            this.metrics = List.copyOf(metrics);
+            this.cacheKey = requireNonNull(cacheKey);
+            this.partitions = query.partitions().map(Partitions::variables).orElse(List.of());
+            this.phaseKey = requireNonNull(phaseKey);
+            this.stats = requireNonNull(stats);
+        }
+    }
+
+    /** How the rows of a query result are turned into samples. */
+    static final class MetricPlan {
+        final MetricOptions metricDef;
+        final String name;
+        final String help;
+        final List<String> labelNames;
+        final String[] staticLabelValues;
+        final String[] resultLabelNames;
+        final String valueColumn;
+        final Relabeler relabeler;
+
+        MetricPlan(String prefix, MetricOptions metricDef) {
+            this.metricDef = requireNonNull(metricDef);
+            this.name = prefix + '_' + metricDef.name();
+
+            // The configuration model is wrong as it's not possible to have more than one sample with
+            // the same set of labels, so we're silently ignoring all but the first label value for now.
+            this.valueColumn = metricDef.values().iterator().next();
+            this.help = metricDef.help().orElse("column " + valueColumn);
+
+            final var labelNames = new ArrayList<String>();
+            labelNames.addAll(metricDef.staticLabels().keySet());
+            labelNames.addAll(metricDef.labels());
+            this.relabeler = new Relabeler(labelNames, metricDef.relabelConfigs());
+            this.labelNames = relabeler.outputNames;
+            this.staticLabelValues = metricDef.staticLabels().values().toArray(new String[0]);
+            this.resultLabelNames = metricDef.labels().toArray(new String[0]);
+        }
+
+        SampleSink newSink() {
+            return SampleSink.of(name, labelNames, help, metricDef);
+        }
+    }
+}
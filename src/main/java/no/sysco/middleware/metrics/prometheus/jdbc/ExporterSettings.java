@@ -0,0 +1,331 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.immutables.value.Value;
+
+/** Exporter wide settings that are not part of the YAML configuration, usually taken from the OS environment. */
+@Value.Immutable
+abstract class ExporterSettings {
+
+    static ExporterSettings fromEnv(Map<String, String> env) {
+        final var builder = ImmutableExporterSettings.builder();
+        get(env, "INSTANCE_ID", Function.identity())
+            .or(() -> get(env, "HOSTNAME", Function.identity()))
+            .ifPresent(builder::instanceId);
+        get(env, "SNAPSHOT_DIRECTORY", Paths::get).ifPresent(builder::snapshotDirectory);
+        get(env, "WARM_UP", Boolean::parseBoolean).ifPresent(builder::warmUp);
+        get(env, "HTTP_MAX_THREADS", Integer::parseInt).ifPresent(builder::httpMaxThreads);
+        get(env, "HTTP_MIN_THREADS", Integer::parseInt).ifPresent(builder::httpMinThreads);
+        get(env, "HTTP_THREAD_IDLE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::httpThreadIdleTimeout);
+        get(env, "HTTP_IDLE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::httpIdleTimeout);
+        get(env, "HTTP_ACCEPTORS", Integer::parseInt).ifPresent(builder::httpAcceptors);
+        get(env, "HTTP_SELECTORS", Integer::parseInt).ifPresent(builder::httpSelectors);
+        get(env, "MAX_CONCURRENT_SCRAPES", Integer::parseInt).ifPresent(builder::maxConcurrentScrapes);
+        get(env, "SCRAPE_QUEUE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::scrapeQueueTimeout);
+        get(env, "SERVE_STALE_WHEN_OVERLOADED", Boolean::parseBoolean).ifPresent(builder::serveStaleWhenOverloaded);
+        get(env, "SCRAPE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::scrapeTimeout);
+        get(env, "SCRAPE_TIMEOUT_OFFSET_SECONDS", ExporterSettings::seconds).ifPresent(builder::scrapeTimeoutOffset);
+        get(env, "SHARD_INDEX", Integer::parseInt).ifPresent(builder::shardIndex);
+        get(env, "SHARD_COUNT", Integer::parseInt).ifPresent(builder::shardCount);
+        get(env, "CACHE_OFF_HEAP", Boolean::parseBoolean).ifPresent(builder::cacheOffHeap);
+        get(env, "CACHE_MAX_SAMPLES", Long::parseLong).ifPresent(builder::cacheMaxSamples);
+        get(env, "QUERY_TIME_BUDGET", Double::parseDouble).ifPresent(builder::queryTimeBudget);
+        get(env, "QUERY_THREADS", Integer::parseInt).ifPresent(builder::queryThreads);
+        get(env, "DB_MAX_CONCURRENT_QUERIES", Integer::parseInt).ifPresent(builder::dbMaxConcurrentQueries);
+        get(env, "DB_MAX_QUERIES_PER_SECOND", Double::parseDouble).ifPresent(builder::dbMaxQueriesPerSecond);
+        get(env, "DB_QUEUE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::dbQueueTimeout);
+        get(env, "DB_IDLE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::dbIdleTimeout);
+        get(env, "PROBE_MAX_TARGETS", Integer::parseInt).ifPresent(builder::probeMaxTargets);
+        get(env, "PROBE_MAX_IDLE_CONNECTIONS", Integer::parseInt).ifPresent(builder::probeMaxIdleConnections);
+        get(env, "PROBE_IDLE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::probeIdleTimeout);
+        get(env, "PROBE_TARGET_PATTERN", Function.identity()).ifPresent(builder::probeTargetPattern);
+        get(env, "REMOTE_WRITE_URL", URI::create).ifPresent(builder::remoteWriteUrl);
+        get(env, "REMOTE_WRITE_INTERVAL_SECONDS", ExporterSettings::seconds).ifPresent(builder::remoteWriteInterval);
+        get(env, "REMOTE_WRITE_BATCH_SIZE", Integer::parseInt).ifPresent(builder::remoteWriteBatchSize);
+        get(env, "REMOTE_WRITE_QUEUE_CAPACITY", Integer::parseInt).ifPresent(builder::remoteWriteQueueCapacity);
+        get(env, "REMOTE_WRITE_MAX_RETRIES", Integer::parseInt).ifPresent(builder::remoteWriteMaxRetries);
+        get(env, "REMOTE_WRITE_TIMEOUT_SECONDS", ExporterSettings::seconds).ifPresent(builder::remoteWriteTimeout);
+        return builder.build();
+    }
+
+    private static <T> Optional<T> get(Map<String, String> env, String name, Function<String, T> parser) {
+        return Optional.ofNullable(env.get(name)).map(String::trim).filter(value -> !value.isEmpty()).map(value -> {
+            try {
+                return parser.apply(value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException(String.format("Invalid value for %s: %s", name, value), e);
+            }
+        });
+    }
+
+    private static Duration seconds(String value) {
+        return Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+    }
+
+    /**
+     * Identifies this exporter instance among others running the same configuration, e.g. the host name. Used to
+     * spread refreshes of different instances over time.
+     */
+    @Value.Default
+    String instanceId() {
+        return "";
+    }
+
+    /** Directory in which the results of cached queries are persisted, so that they survive restarts. */
+    abstract Optional<Path> snapshotDirectory();
+
+    /** Whether to keep the samples of cached query results in direct buffers, outside of the Java heap. */
+    @Value.Default
+    boolean cacheOffHeap() {
+        return false;
+    }
+
+    /**
+     * Maximum number of samples of all cached query results. The least recently used results are evicted beyond that.
+     */
+    @Value.Default
+    long cacheMaxSamples() {
+        return 1_000_000;
+    }
+
+    /**
+     * Fraction of wall-clock time each connection may spend executing queries, e.g. {@code 0.02} for 2%. If present,
+     * refresh intervals of queries are adapted to their observed execution times to stay within that budget.
+     */
+    abstract Optional<Double> queryTimeBudget();
+
+    /**
+     * Number of threads running the queries of all scrapes. Queries waiting for a thread are started by priority and,
+     * among queries of the same priority, longest expected execution time first.
+     */
+    @Value.Default
+    int queryThreads() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Maximum number of queries running on the same database at the same time. Unlimited if absent. */
+    abstract OptionalInt dbMaxConcurrentQueries();
+
+    /** Maximum number of queries started per second on the same database. Unlimited if absent. */
+    abstract Optional<Double> dbMaxQueriesPerSecond();
+
+    /** How long a query waits for the limits of its database before it is rejected. */
+    @Value.Default
+    Duration dbQueueTimeout() {
+        return Duration.ofSeconds(10);
+    }
+
+    /** How long the limits of a database are kept after the last query on it. */
+    @Value.Default
+    Duration dbIdleTimeout() {
+        return Duration.ofHours(1);
+    }
+
+    /** Whether to run all jobs once at startup before reporting to be ready. */
+    @Value.Default
+    boolean warmUp() {
+        return false;
+    }
+
+    /** Maximum number of threads serving HTTP requests. */
+    @Value.Default
+    int httpMaxThreads() {
+        return 200;
+    }
+
+    /** Minimum number of threads serving HTTP requests. */
+    @Value.Default
+    int httpMinThreads() {
+        return 8;
+    }
+
+    /** How long an idle HTTP thread is kept before it is stopped. */
+    @Value.Default
+    Duration httpThreadIdleTimeout() {
+        return Duration.ofMinutes(1);
+    }
+
+    /** How long an idle HTTP connection is kept open. */
+    @Value.Default
+    Duration httpIdleTimeout() {
+        return Duration.ofSeconds(30);
+    }
+
+    /** Number of HTTP acceptor threads. Negative values let Jetty choose. */
+    @Value.Default
+    int httpAcceptors() {
+        return -1;
+    }
+
+    /** Number of HTTP selector threads. Negative values let Jetty choose. */
+    @Value.Default
+    int httpSelectors() {
+        return -1;
+    }
+
+    /** Maximum number of scrapes that are collected at the same time. Unlimited if absent. */
+    abstract OptionalInt maxConcurrentScrapes();
+
+    /** How long a scrape waits for one of the {@linkplain #maxConcurrentScrapes() slots} to become available. */
+    @Value.Default
+    Duration scrapeQueueTimeout() {
+        return Duration.ZERO;
+    }
+
+    /** Whether to answer excess scrapes with the last successfully collected response instead of HTTP 503. */
+    @Value.Default
+    boolean serveStaleWhenOverloaded() {
+        return false;
+    }
+
+    /**
+     * Timeout of scrapes that don't tell their timeout via {@value ScrapeDeadline#TIMEOUT_HEADER}. Scrapes don't have
+     * a timeout if absent.
+     */
+    abstract Optional<Duration> scrapeTimeout();
+
+    /** Time subtracted from the timeout of scrapes, to leave room for sending the response. */
+    @Value.Default
+    Duration scrapeTimeoutOffset() {
+        return Duration.ofMillis(500);
+    }
+
+    /** Index of this replica among {@link #shardCount()} replicas sharing the same configuration. */
+    @Value.Default
+    int shardIndex() {
+        return 0;
+    }
+
+    /** Number of replicas that share the same configuration, each one handling a part of all connections. */
+    @Value.Default
+    int shardCount() {
+        return 1;
+    }
+
+    /** Maximum number of probed targets for which idle connections are kept. */
+    @Value.Default
+    int probeMaxTargets() {
+        return 100;
+    }
+
+    /** Maximum number of idle connections kept per probed target. */
+    @Value.Default
+    int probeMaxIdleConnections() {
+        return 2;
+    }
+
+    /** How long the idle connections of a probed target are kept after it has last been probed. */
+    @Value.Default
+    Duration probeIdleTimeout() {
+        return Duration.ofMinutes(5);
+    }
+
+    /**
+     * Regular expression that probed targets have to match entirely. The default allows host names and addresses with
+     * an optional port and database name, so that targets can't inject arbitrary parameters into connection URLs.
+     */
+    @Value.Default
+    String probeTargetPattern() {
+        return "[A-Za-z0-9._\\-:\\[\\]]+(/[A-Za-z0-9._\\-]+)?";
+    }
+
+    /** Prometheus remote write endpoint to push metrics to. Metrics are only pushed if present. */
+    abstract Optional<URI> remoteWriteUrl();
+
+    /** How often metrics are collected and pushed to the {@linkplain #remoteWriteUrl() remote write endpoint}. */
+    @Value.Default
+    Duration remoteWriteInterval() {
+        return Duration.ofMinutes(1);
+    }
+
+    /** Maximum number of samples per remote write request. */
+    @Value.Default
+    int remoteWriteBatchSize() {
+        return 500;
+    }
+
+    /** Maximum number of samples waiting to be pushed. */
+    @Value.Default
+    int remoteWriteQueueCapacity() {
+        return 100_000;
+    }
+
+    /** How often a failed remote write request is retried before its samples are dropped. */
+    @Value.Default
+    int remoteWriteMaxRetries() {
+        return 3;
+    }
+
+    /** Timeout of remote write requests. */
+    @Value.Default
+    Duration remoteWriteTimeout() {
+        return Duration.ofSeconds(30);
+    }
+
+    Jitter jitter() {
+        return new Jitter(instanceId());
+    }
+
+    ShardSelector shardSelector() {
+        return new ShardSelector(shardIndex(), shardCount());
+    }
+
+    @Value.Check
+    void validate() {
+        if (httpMinThreads() < 1 || httpMaxThreads() < httpMinThreads()) {
+            throw new IllegalArgumentException(
+                String.format("invalid HTTP thread pool size: %d..%d", httpMinThreads(), httpMaxThreads()));
+        }
+        if (maxConcurrentScrapes().isPresent() && maxConcurrentScrapes().getAsInt() < 1) {
+            throw new IllegalArgumentException("max concurrent scrapes must be positive: " + maxConcurrentScrapes());
+        }
+        shardSelector();
+        if (cacheMaxSamples() < 1) {
+            throw new IllegalArgumentException("max cached samples must be positive: " + cacheMaxSamples());
+        }
+        if (queryTimeBudget().isPresent() && !(queryTimeBudget().get() > 0 && queryTimeBudget().get() <= 1)) {
+            throw new IllegalArgumentException("query time budget must be in (0, 1]: " + queryTimeBudget().get());
+        }
+        if (queryThreads() < 1) {
+            throw new IllegalArgumentException("query threads must be positive: " + queryThreads());
+        }
+        if (dbMaxConcurrentQueries().isPresent() && dbMaxConcurrentQueries().getAsInt() < 1) {
+            throw new IllegalArgumentException("max concurrent queries must be positive: " + dbMaxConcurrentQueries());
+        }
+        if (dbMaxQueriesPerSecond().isPresent() && !(dbMaxQueriesPerSecond().get() > 0)) {
+            throw new IllegalArgumentException("max queries per second must be positive: " + dbMaxQueriesPerSecond().get());
+        }
+        if (probeMaxTargets() < 1 || probeMaxIdleConnections() < 0) {
+            throw new IllegalArgumentException(
+                String.format(
+                    "invalid probe pool limits: %d targets, %d idle connections",
+                    probeMaxTargets(),
+                    probeMaxIdleConnections()));
+        }
+        try {
+            Pattern.compile(probeTargetPattern());
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("invalid probe target pattern: " + probeTargetPattern(), e);
+        }
+        if (remoteWriteInterval().isNegative() || remoteWriteInterval().isZero()) {
+            throw new IllegalArgumentException("remote write interval must be positive: " + remoteWriteInterval());
+        }
+        if (remoteWriteBatchSize() < 1 || remoteWriteQueueCapacity() < remoteWriteBatchSize()) {
+            throw new IllegalArgumentException(
+                String.format(
+                    "invalid remote write batch size %d or queue capacity %d",
+                    remoteWriteBatchSize(),
+                    remoteWriteQueueCapacity()));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import io.prometheus.client.Collector;
+
+/**
+ * A snapshot store that keeps one file per key in a directory.
+ *
+ * <p>
+ * Files are written asynchronously by a single background thread. Each file is first written to a temporary file and
+ * then atomically moved into place, and carries a CRC32 checksum, so a crash in the middle of a write never leaves a
+ * half written snapshot behind that would be picked up on the next start. All snapshots are read into memory when the
+ * store is opened, via memory mapped files, and kept in their {@linkplain ColumnarSamples columnar form} until they
+ * are restored.
+ *
+ * <p>
+ * The file format is a compact binary one: all strings are stored once in a string table and referenced by index.
+ */
+final class FileSnapshotStore implements SnapshotStore, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(FileSnapshotStore.class.getName());
+
+    private static final int MAGIC = 0x4A444253; // "JDBS"
+    /** Version 2 added the change token. */
+    private static final short VERSION = 2;
+    private static final String SUFFIX = ".snapshot";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path directory;
+    private final Map<String, SampleResult> restored = new ConcurrentHashMap<>();
+    private final Map<String, SampleResult> pending = new ConcurrentHashMap<>();
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        final var thread = new Thread(r, "snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    FileSnapshotStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(requireNonNull(directory));
+        loadAll();
+    }
+
+    private void loadAll() throws IOException {
+        try (final var files = Files.list(directory)) {
+            for (final var it = files.iterator(); it.hasNext();) {
+                final var file = it.next();
+                final var fileName = file.getFileName().toString();
+                if (fileName.endsWith(TMP_SUFFIX)) {
+                    // leftover of an interrupted write
+                    Files.deleteIfExists(file);
+                } else if (fileName.endsWith(SUFFIX)) {
+                    final var key = fileName.substring(0, fileName.length() - SUFFIX.length());
+                    try {
+                        restored.put(key, read(file));
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Ignoring unreadable snapshot " + file, e);
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+        LOGGER.info(String.format("Restored %d snapshots from %s", restored.size(), directory));
+    }
+
+    @Override
+    public Optional<SampleResult> restore(String key) {
+        return Optional.ofNullable(restored.remove(key));
+    }
+
+    @Override
+    public void save(String key, SampleResult result) {
+        // Only the latest result per key is written, older ones that are still pending are simply replaced.
+        if (pending.put(key, result) == null) {
+            writer.execute(() -> {
+                final var latest = pending.remove(key);
+                try {
+                    write(directory.resolve(key + SUFFIX), latest);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to write snapshot " + key, e);
+                }
+            });
+        }
+    }
+
+    /** Deletes the files of all other keys, once the pending writes are done. */
+    @Override
+    public void retain(Set<String> keys) {
+        restored.keySet().retainAll(keys);
+        final var retained = Set.copyOf(keys);
+        writer.execute(() -> {
+            try (final var files = Files.list(directory)) {
+                for (final var it = files.iterator(); it.hasNext();) {
+                    final var file = it.next();
+                    final var fileName = file.getFileName().toString();
+                    if (fileName.endsWith(SUFFIX)
+                        && !retained.contains(fileName.substring(0, fileName.length() - SUFFIX.length())))
+                    {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete unused snapshots in " + directory, e);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void write(Path file, SampleResult result) throws IOException {
+        final var strings = new StringTable();
+        final var body = new ByteArrayOutputStream();
+        final var out = new DataOutputStream(body);
+        out.writeLong(result.sampleTime.getEpochSecond());
+        out.writeInt(result.sampleTime.getNano());
+        out.writeLong(result.scrapeDuration.toNanos());
+        out.writeInt(result.changeToken.map(strings::indexOf).orElse(-1));
+        out.writeInt(result.samples.size());
+        for (final var family : result.samples) {
+            out.writeInt(strings.indexOf(family.name));
+            out.writeInt(strings.indexOf(family.type.name()));
+            out.writeInt(strings.indexOf(family.help));
+            out.writeInt(family.samples.size());
+            for (final var sample : family.samples) {
+                out.writeInt(strings.indexOf(sample.name));
+                out.writeInt(sample.labelNames.size());
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    out.writeInt(strings.indexOf(sample.labelNames.get(i)));
+                    out.writeInt(strings.indexOf(sample.labelValues.get(i)));
+                }
+                out.writeDouble(sample.value);
+            }
+        }
+        out.flush();
+
+        final var data = new ByteArrayOutputStream(body.size() + 1024);
+        final var dataOut = new DataOutputStream(data);
+        dataOut.writeInt(MAGIC);
+        dataOut.writeShort(VERSION);
+        dataOut.writeInt(strings.size());
+        for (final var string : strings.values()) {
+            final var bytes = string.getBytes(UTF_8);
+            dataOut.writeInt(bytes.length);
+            dataOut.write(bytes);
+        }
+        body.writeTo(dataOut);
+
+        final var crc = new CRC32();
+        crc.update(data.toByteArray());
+        dataOut.writeLong(crc.getValue());
+        dataOut.flush();
+
+        final var tmpFile = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+        try (final var channel = FileChannel.open(
+            tmpFile,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE))
+        {
+            final var buffer = ByteBuffer.wrap(data.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static SampleResult read(Path file) throws IOException {
+        final ByteBuffer buffer;
+        try (final var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        final var crcOffset = buffer.limit() - Long.BYTES;
+        if (crcOffset < Integer.BYTES + Short.BYTES) {
+            throw new IOException("truncated snapshot");
+        }
+        final var crc = new CRC32();
+        crc.update(buffer.duplicate().limit(crcOffset));
+        if (crc.getValue() != buffer.getLong(crcOffset)) {
+            throw new IOException("checksum mismatch");
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("unsupported snapshot format");
+        }
+        final var version = buffer.getShort();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+
+        final var strings = new String[buffer.getInt()];
+        for (int i = 0; i < strings.length; i++) {
+            final var bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, UTF_8);
+        }
+
+        final var result = new SampleResult(Instant.ofEpochSecond(buffer.getLong(), buffer.getInt()));
+        result.scrapeDuration = Duration.ofNanos(buffer.getLong());
+        if (version >= 2) {
+            final var changeToken = buffer.getInt();
+            if (changeToken >= 0) {
+                result.changeToken = Optional.of(strings[changeToken]);
+            }
+        }
+        final var familyCount = buffer.getInt();
+        for (int f = 0; f < familyCount; f++) {
+            final var name = strings[buffer.getInt()];
+            final var type = Collector.Type.valueOf(strings[buffer.getInt()]);
+            final var help = strings[buffer.getInt()];
+            final var sampleCount = buffer.getInt();
+            final var samples = new ArrayList<Collector.MetricFamilySamples.Sample>(sampleCount);
+            for (int s = 0; s < sampleCount; s++) {
+                final var sampleName = strings[buffer.getInt()];
+                final var labelCount = buffer.getInt();
+                final var labelNames = new String[labelCount];
+                final var labelValues = new String[labelCount];
+                for (int l = 0; l < labelCount; l++) {
+                    labelNames[l] = strings[buffer.getInt()];
+                    labelValues[l] = strings[buffer.getInt()];
+                }
+                samples.add(
+                    new Collector.MetricFamilySamples.Sample(
+                        sampleName,
+                        List.of(labelNames),
+                        List.of(labelValues),
+                        buffer.getDouble()));
+            }
+            result.samples.add(new Collector.MetricFamilySamples(name, type, help, samples));
+        }
+        result.samples = ColumnarSamples.of(result.samples, false);
+        return result;
+    }
+
+    /** Assigns increasing indexes to distinct strings, in order of first appearance. */
+    private static final class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        int indexOf(String value) {
+            return indexes.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        int size() {
+            return values.size();
+        }
+
+        List<String> values() {
+            return values;
+        }
+    }
+}
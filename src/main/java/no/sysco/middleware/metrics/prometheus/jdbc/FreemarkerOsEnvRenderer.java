@@ -2,6 +2,7 @@ package no.sysco.middleware.metrics.prometheus.jdbc;
 
 import java.io.IOException;
 import java.io.StringWriter;
+import java.util.HashMap;
 import java.util.Map;
 
 import freemarker.template.Configuration;
@@ -12,15 +13,29 @@ import freemarker.template.TemplateExceptionHandler;
 public class FreemarkerOsEnvRenderer implements TemplateRenderer {
 
     private final Configuration config;
-    private final Object data;
+    private final Map<String, Object> data;
 
     public FreemarkerOsEnvRenderer() {
         config = initConfig();
         data = Map.of("env", Map.copyOf(System.getenv()));
     }
 
+    private FreemarkerOsEnvRenderer(Configuration config, Map<String, Object> data) {
+        this.config = config;
+        this.data = data;
+    }
+
+    @Override
+    public TemplateRenderer with(Map<String, ?> variables) {
+        final var data = new HashMap<String, Object>(variables);
+        data.putAll(this.data);
+        return new FreemarkerOsEnvRenderer(config, Map.copyOf(data));
+    }
+
     @Override
     public String render(String template) {
+        final var event = new JfrEvents.Render();
+        event.begin();
         try {
             final var tpl = new Template(null, template, config);
             final var result = new StringWriter();
@@ -28,6 +43,12 @@ public class FreemarkerOsEnvRenderer implements TemplateRenderer {
             return result.toString();
         } catch (TemplateException | IOException e) {
             throw new RuntimeException("failed to render template", e);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.templateLength = template.length();
+                event.commit();
+            }
         }
     }
 
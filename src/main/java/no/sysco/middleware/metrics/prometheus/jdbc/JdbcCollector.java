@@ -2,20 +2,28 @@ package no.sysco.middleware.metrics.prometheus.jdbc;
 
 import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.DriverManager;
 import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.Config;
 
 /**
@@ -32,15 +40,45 @@ public class JdbcCollector extends Collector implements Collector.Describable {
     private volatile Instant lastUpdate = Instant.EPOCH;
 
     private final TemplateRenderer renderer = new FreemarkerOsEnvRenderer();
+    private final SnapshotStore snapshots;
+    private final ShardSelector shards;
+    private final ExporterSettings settings;
+    private final QueryStatistics statistics;
+    private final DatabaseGovernor governor;
+    private final SampleCache cache;
+    private final QueryExecutor executor;
+    private final TargetConnectionPools probePools;
+    private final Pattern probeTargets;
 
     private final Counter configReloadSuccess;
     private final Counter configReloadFailure;
+    private final Gauge warmUpDuration;
 
     private final Clock clock = Clock.systemUTC();
 
     JdbcCollector(String metricPrefix, Path configSource) throws IOException {
+        this(metricPrefix, configSource, ImmutableExporterSettings.builder().build(), SnapshotStore.NONE);
+    }
+
+    JdbcCollector(String metricPrefix, Path configSource, ExporterSettings settings, SnapshotStore snapshots)
+        throws IOException
+    {
         this.configSource = requireNonNull(configSource);
         this.metricPrefix = requireNonNull(metricPrefix);
+        this.snapshots = requireNonNull(snapshots);
+        this.settings = requireNonNull(settings);
+        this.shards = settings.shardSelector();
+        this.statistics = new QueryStatistics(metricPrefix);
+        this.governor = new DatabaseGovernor(metricPrefix, settings, CollectorRegistry.defaultRegistry);
+        this.cache = new SampleCache(metricPrefix, settings, CollectorRegistry.defaultRegistry);
+        this.executor = new QueryExecutor(metricPrefix, settings, CollectorRegistry.defaultRegistry);
+        this.probePools = new TargetConnectionPools(
+            ConnectionProvider.DRIVER_MANAGER,
+            settings.probeMaxTargets(),
+            settings.probeMaxIdleConnections(),
+            settings.probeIdleTimeout(),
+            clock);
+        this.probeTargets = Pattern.compile(settings.probeTargetPattern());
 
         this.configReloadSuccess = Counter.build()
                 .name(metricPrefix + "_config_reload_success_total")
@@ -52,6 +90,11 @@ public class JdbcCollector extends Collector implements Collector.Describable {
                 .help("Number of times configuration have failed to be reloaded.")
                 .register();
 
+        this.warmUpDuration = Gauge.build()
+                .name(metricPrefix + "_warmup_duration_seconds")
+                .help("Time the warm-up at startup took, in seconds.")
+                .register();
+
         final var lastUpdate = Files.getLastModifiedTime(configSource).toInstant();
         loadConfig();
         this.lastUpdate = lastUpdate;
@@ -59,24 +102,42 @@ public class JdbcCollector extends Collector implements Collector.Describable {
 
     private void loadConfig() throws IOException {
         final var configs = new ArrayList<JdbcConfig>();
+        var files = 0;
         for (final var it = Files.walk(configSource).filter(Files::isRegularFile).iterator(); it.hasNext();) {
             final var file = it.next();
+            files++;
             try (final var configData = Files.newInputStream(file)) {
-                configs.add(
-                    new JdbcConfig(
+                shards.select(Config.parseYaml(configData))
+                    .map(config -> new JdbcConfig(
                         metricPrefix,
-                        Config.parseYaml(configData),
+                        config,
+                        file.toString(),
                         ConnectionProvider.DRIVER_MANAGER,
                         renderer,
-                        clock));
+                        clock,
+                        settings,
+                        snapshots,
+                        statistics,
+                        governor,
+                        cache,
+                        executor))
+                    .ifPresent(configs::add);
             }
         }
 
-        if (configs.isEmpty()) {
+        if (files == 0) {
             throw new IllegalArgumentException("No configuration in " + configSource);
         }
+        if (configs.isEmpty()) {
+            LOGGER.warning(String.format("No connections in %s are assigned to %s", configSource, shards));
+        }
 
         this.configs = List.copyOf(configs);
+
+        // statistics and snapshots of queries that are gone, or run by another shard now, would never be used again
+        final var keys = configs.stream().flatMap(JdbcConfig::cacheKeys).collect(toSet());
+        statistics.retain(keys);
+        snapshots.retain(keys.stream().map(CacheKey::digest).collect(toSet()));
     }
 
     @Override
@@ -94,29 +155,94 @@ public class JdbcCollector extends Collector implements Collector.Describable {
                 Type.GAUGE,
                 "Non-zero if this scrape failed.",
                 new ArrayList<>()));
+        sampleFamilies.add(
+            new MetricFamilySamples(
+                metricPrefix + "_scrape_timeout",
+                Type.GAUGE,
+                "Non-zero if this scrape hit its deadline and returned partial results.",
+                new ArrayList<>()));
         return sampleFamilies;
     }
 
     @Override
     public List<MetricFamilySamples> collect() {
         reloadConfigIfOutdated();
-        return configs.parallelStream().flatMap(JdbcConfig::runJobs).collect(toList());
+        cache.expire(clock.instant());
+        // the deadline is bound to the servlet's thread, not to the ones running the jobs
+        final var deadline = ScrapeDeadline.current();
+        final var familySamples = configs.parallelStream()
+            .flatMap(config -> config.runJobs(deadline))
+            .collect(toList());
+        familySamples.addAll(statistics.collect());
+        return familySamples;
+    }
+
+    /**
+     * Runs a module of the configuration against a single target.
+     *
+     * @return the samples of the probe, or empty if no configuration has a module with the given name
+     * @throws IllegalArgumentException
+     *             if the target doesn't match the {@linkplain ExporterSettings#probeTargetPattern() target pattern}
+     */
+    Optional<List<MetricFamilySamples>> probe(String module, String target) {
+        if (!probeTargets.matcher(target).matches()) {
+            throw new IllegalArgumentException("invalid target: " + target);
+        }
+        reloadConfigIfOutdated();
+        return configs.stream()
+            .filter(config -> config.hasModule(module))
+            .findFirst()
+            .flatMap(config -> config.probe(module, target, probePools, ScrapeDeadline.current()));
+    }
+
+    QueryStatistics statistics() {
+        return statistics;
+    }
+
+    /**
+     * Runs all jobs once, so that JDBC drivers are loaded, connections have been established at least once, templates
+     * have been rendered and cached query results are populated before the first scrape arrives.
+     */
+    void warmUp() {
+        final var startNanos = System.nanoTime();
+        LOGGER.info("Warming up...");
+
+        // Loads all JDBC drivers that are available via the service loader mechanism.
+        final var drivers = DriverManager.drivers().count();
+        LOGGER.fine(String.format("Found %d JDBC drivers", drivers));
+
+        final var familySamples = collect();
+
+        final var duration = Duration.ofNanos(System.nanoTime() - startNanos);
+        warmUpDuration.set(duration.toNanos() / (double) TimeUnit.SECONDS.toNanos(1));
+        LOGGER.info(String.format("Warm-up finished after %s, collected %d metric families", duration, familySamples.size()));
     }
 
     void reloadConfigIfOutdated() {
+        final var event = new JfrEvents.ConfigReload();
+        event.begin();
         try {
             final var lastUpdate = Files.getLastModifiedTime(configSource).toInstant();
             if (this.lastUpdate.equals(lastUpdate)) {
+                event.success = true;
                 return;
             }
 
+            event.changed = true;
             LOGGER.fine("Configuration changed, reloading...");
             loadConfig();
             this.lastUpdate = lastUpdate;
             configReloadSuccess.inc();
+            event.success = true;
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "Configuration reload failed: " + e.getMessage(), e);
             configReloadFailure.inc();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = configSource.toString();
+                event.commit();
+            }
         }
     }
 }
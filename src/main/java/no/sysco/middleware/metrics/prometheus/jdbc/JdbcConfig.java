@@ -4,68 +4,181 @@ import static java.util.Objects.requireNonNull;
 import static java.util.stream.Collectors.toList;
 
 import java.sql.Connection;
-import java.sql.ResultSet;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
-import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
-import org.immutables.value.Value;
-
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.JobPlan;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.QueryTask;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.Config;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ConnectionDef;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConfig;
-import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
-import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
-import no.sysco.middleware.metrics.prometheus.jdbc.config.Job;
-import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryDef;
 
 class JdbcConfig {
     private static final Logger LOGGER = Logger.getLogger(JdbcConfig.class.getName());
 
+    private static final BiConsumer<QueryTask, SampleResult> NO_LISTENER = (task, result) -> {};
+
     private final String prefix;
-    private final Config config;
     private final ConnectionProvider connProvider;
     private final TemplateRenderer renderer;
     private final Clock clock;
+    private final ExporterSettings settings;
+    private final SnapshotStore snapshots;
+    private final DatabaseGovernor governor;
+    private final SampleCache cache;
+    private final QueryExecutor executor;
+    private final Jitter jitter;
 
-    private Map<ImmutableCacheKey, SampleResult> sampleCache = new ConcurrentHashMap<>();
+    private final ExecutionPlan plan;
 
     JdbcConfig(String prefix, Config config, ConnectionProvider connProvider, TemplateRenderer renderer, Clock clock) {
+        this(
+            prefix,
+            config,
+            "",
+            connProvider,
+            renderer,
+            clock,
+            ImmutableExporterSettings.builder().build(),
+            SnapshotStore.NONE,
+            new QueryStatistics(prefix),
+            new DatabaseGovernor(prefix, ImmutableExporterSettings.builder().build(), new CollectorRegistry()),
+            new SampleCache(prefix, ImmutableExporterSettings.builder().build(), new CollectorRegistry()),
+            new QueryExecutor(prefix, ImmutableExporterSettings.builder().build(), new CollectorRegistry()));
+    }
+
+    JdbcConfig(
+        String prefix,
+        Config config,
+        String source,
+        ConnectionProvider connProvider,
+        TemplateRenderer renderer,
+        Clock clock,
+        ExporterSettings settings,
+        SnapshotStore snapshots,
+        QueryStatistics statistics,
+        DatabaseGovernor governor,
+        SampleCache cache,
+        QueryExecutor executor)
+    {
         this.prefix = requireNonNull(prefix);
-        this.config = ImmutableConfig.copyOf(config);
         this.connProvider = requireNonNull(connProvider);
         this.renderer = requireNonNull(renderer);
         this.clock = requireNonNull(clock);
+        this.settings = requireNonNull(settings);
+        this.snapshots = requireNonNull(snapshots);
+        this.governor = requireNonNull(governor);
+        this.cache = requireNonNull(cache);
+        this.executor = requireNonNull(executor);
+        this.jitter = settings.jitter();
+        this.plan = ExecutionPlan.compile(
+            prefix,
+            ImmutableConfig.copyOf(config),
+            requireNonNull(source),
+            requireNonNull(statistics));
     }
 
     Stream<Collector.MetricFamilySamples> runJobs() {
-        return config.jobs().parallelStream().flatMap(job -> runJob(prefix, job).samples.stream());
+        return runJobs(Optional.empty());
+    }
+
+    /**
+     * Runs all jobs. Queries still running at the deadline, if any, are cancelled, and queries that haven't been started
+     * by then are skipped, so that the samples of all other queries can be returned in time.
+     */
+    Stream<Collector.MetricFamilySamples> runJobs(Optional<ScrapeDeadline> deadline) {
+        final var scrape = new Scrape(renderer, connProvider, true, deadline, NO_LISTENER);
+        return plan.jobs.parallelStream().flatMap(job -> runJob(prefix, job, scrape).samples.stream());
+    }
+
+    /**
+     * Runs all jobs once, one after the other, without taking results from or putting them into the cache, and hands
+     * the result of each query execution to a listener, e.g. to measure the cost of a configuration.
+     */
+    void profile(BiConsumer<QueryTask, SampleResult> executions) {
+        final var scrape = new Scrape(renderer, connProvider, false, Optional.empty(), executions);
+        plan.jobs.forEach(job -> runJob(prefix, job, scrape));
+    }
+
+    /** The cache keys of all queries of all jobs and modules, i.e. the ones that are in use. */
+    Stream<ImmutableCacheKey> cacheKeys() {
+        return Stream.concat(plan.jobs.stream(), plan.modules.values().stream())
+            .flatMap(job -> job.connections.stream())
+            .flatMap(connection -> connection.tasks.stream())
+            .map(task -> task.cacheKey);
     }
 
-    private SampleResult runJob(String prefix, Job job) {
+    boolean hasModule(String module) {
+        return plan.modules.containsKey(module);
+    }
+
+    /**
+     * Runs a module against a single target. The target is available as {@code target} when rendering the templates of
+     * the module, and connections are taken from the given provider. Results of probes are never cached.
+     *
+     * @return the samples of the probe, or empty if there's no module with the given name
+     */
+    Optional<List<Collector.MetricFamilySamples>> probe(
+        String module,
+        String target,
+        ConnectionProvider connections,
+        Optional<ScrapeDeadline> deadline)
+    {
+        return Optional.ofNullable(plan.modules.get(module)).map(job -> {
+            final var scrape = new Scrape(
+                renderer.with(Map.of("target", target)),
+                connections,
+                false,
+                deadline,
+                NO_LISTENER);
+            return runJob(prefix, job, scrape).samples;
+        });
+    }
+
+    private SampleResult runJob(String prefix, JobPlan job, Scrape scrape) {
         final var startNanos = System.nanoTime();
-        LOGGER.log(Level.INFO, "Running JDBC job: " + job.name());
+        LOGGER.log(Level.INFO, "Running JDBC job: " + job.name);
 
         final var result = new SampleResult(clock);
 
-        try (final var sampleStream = streamJobSamples(job)) {
-            result.samples = sampleStream.flatMap(samples -> samples.samples.stream()).collect(toList());
+        final var timedOut = new AtomicBoolean();
+        try (final var sampleStream = streamJobSamples(job, scrape)) {
+            result.samples = sampleStream
+                .peek(samples -> {
+                    if (samples.timedOut) {
+                        timedOut.set(true);
+                    }
+                })
+                .flatMap(samples -> samples.samples.stream())
+                .collect(toList());
+            result.samples = job.aggregator.apply(result.samples);
         } catch (Exception e) {
             result.error = Optional.of(e);
-            LOGGER.log(Level.WARNING, "Exception during execution of job " + job.name() + ": ", e);
+            LOGGER.log(Level.WARNING, "Exception during execution of job " + job.name + ": ", e);
+        }
+        if (timedOut.get()) {
+            LOGGER.warning("Scrape deadline exceeded, returning partial results of job " + job.name);
+            result.timedOut = true;
+            result.error = result.error.or(() -> Optional.of(new SQLTimeoutException("Scrape deadline exceeded")));
         }
 
         result.scrapeDuration = Duration.ofNanos(System.nanoTime() - startNanos);
@@ -102,22 +215,68 @@ class JdbcConfig {
             ) //
         );
 
+        result.samples.add(
+            new Collector.MetricFamilySamples(
+                prefix + "_scrape_timeout",
+                Collector.Type.GAUGE,
+                "Non-zero if this scrape hit its deadline and returned partial results.",
+                List.of(
+                    new Collector.MetricFamilySamples.Sample(
+                        prefix + "_scrape_timeout",
+                        List.of(),
+                        List.of(),
+                        result.timedOut ? 1 : 0 //
+                    ) //
+                ) //
+            ) //
+        );
+
         return result;
     }
 
-    private Connection openConnection(ConnectionDef connDef) throws ClassNotFoundException, SQLException {
-        final var url = renderer.render(connDef.url());
-        LOGGER.info(String.format("JDBC Connection URL: %s", url));
+    private Connection openConnection(JobPlan job, Scrape scrape, ConnectionDef connDef, String url)
+        throws ClassNotFoundException, SQLException, InterruptedException
+    {
+        return connect(job, url, () -> {
+            if (connDef.driverClassName().isPresent()) {
+                Class.forName(scrape.renderer.render(connDef.driverClassName().get()));
+            }
+            return scrape.connections.getConnection(url, connectionProperties(scrape, connDef));
+        });
+    }
 
-        if (connDef.driverClassName().isPresent()) {
-            Class.forName(renderer.render(connDef.driverClassName().get()));
-        }
+    private io.r2dbc.spi.Connection openR2dbcConnection(JobPlan job, Scrape scrape, ConnectionDef connDef, String url)
+        throws ClassNotFoundException, SQLException, InterruptedException
+    {
+        return connect(job, url, () -> R2dbcQueries.connect(url, connectionProperties(scrape, connDef), scrape.deadline));
+    }
 
+    private static Map<String, String> connectionProperties(Scrape scrape, ConnectionDef connDef) {
         final var props = new HashMap<String, String>();
-        connDef.username().map(renderer::render).ifPresent(u -> props.put("user", u));
-        connDef.password().map(renderer::render).ifPresent(p -> props.put("password", p));
+        connDef.username().map(scrape.renderer::render).ifPresent(u -> props.put("user", u));
+        connDef.password().map(scrape.renderer::render).ifPresent(p -> props.put("password", p));
+        return props;
+    }
+
+    private static <C> C connect(JobPlan job, String url, Connector<C> connector)
+        throws ClassNotFoundException, SQLException, InterruptedException
+    {
+        LOGGER.info(String.format("JDBC Connection URL: %s", url));
 
-        return connProvider.getConnection(url, props);
+        final var event = new JfrEvents.Connect();
+        event.begin();
+        try {
+            final var conn = connector.connect();
+            event.success = true;
+            return conn;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.job = job.name;
+                event.connection = ConnectionUrls.redact(url);
+                event.commit();
+            }
+        }
     }
 
     private static void closeConnection(final Connection conn) {
@@ -129,127 +288,537 @@ class JdbcConfig {
         }
     }
 
-    private Stream<SampleResult> streamJobSamples(Job job) {
-        return job.connections().parallelStream().flatMap(connDef -> {
-            final Connection conn;
+    private Stream<SampleResult> streamJobSamples(JobPlan job, Scrape scrape) {
+        return job.connections.parallelStream().flatMap(connection -> {
+            if (scrape.isExpired()) {
+                return connection.tasks.stream().map(this::skipped);
+            }
             try {
-                conn = openConnection(connDef);
+                final var url = scrape.renderer.render(connection.connDef.url());
+                if (R2dbcQueries.isR2dbc(url)) {
+                    // the queries of an R2DBC connection are run one after the other, as most drivers don't support
+                    // concurrent statements on a connection, which isn't opened if all results are taken from the cache
+                    final var conn = new LazyConnection<>(() -> openR2dbcConnection(job, scrape, connection.connDef, url));
+                    return connection.tasks
+                        .stream()
+                        .sorted(Comparator.comparingInt(task -> -task.query.priority()))
+                        .onClose(() -> conn.ifOpened(c -> R2dbcQueries.close(c, scrape.deadline)))
+                        .map(task -> evaluateQuery(job, scrape, task, () -> {
+                            if (!task.partitions.isEmpty()) {
+                                return runPartitions(job, scrape, task, connection.connDef, url);
+                            }
+                            return runQuery(job, scrape, task, url, (sql, rows) -> {
+                                executeR2dbc(conn.get(), scrape, sql, task, rows);
+                            });
+                        }, () -> runChangeProbe(job, scrape, task, url, (sql, token) -> {
+                            probeR2dbc(conn.get(), scrape, sql, token);
+                        })));
+                }
+
+                final var conn = openConnection(job, scrape, connection.connDef, url);
+                final var results = connection.tasks
+                    .stream()
+                    .map(task -> schedule(scrape, task, () -> evaluateQuery(job, scrape, task, () -> {
+                        if (!task.partitions.isEmpty()) {
+                            return runPartitions(job, scrape, task, connection.connDef, url);
+                        }
+                        if (task.query.fetchSize().isPresent()) {
+                            // a cursor switches auto-commit, which mustn't affect the queries sharing the connection
+                            return runQuery(job, scrape, task, url, (sql, rows) -> {
+                                executeOnOwnConnection(job, scrape, connection.connDef, url, sql, task, rows);
+                            });
+                        }
+                        return runQuery(job, scrape, task, url, (sql, rows) -> {
+                            executeStatement(conn, scrape, sql, task, rows);
+                        });
+                    }, () -> runChangeProbe(job, scrape, task, url, (sql, token) -> {
+                        probeStatement(conn, scrape, sql, token);
+                    }))))
+                    .collect(toList());
+                return results.stream().onClose(() -> closeConnection(conn)).map(Supplier::get);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.SEVERE, "Interrupted while connecting to database for job " + job.name, e);
+                return Stream.empty();
             } catch (SQLException | ClassNotFoundException | RuntimeException e) {
-                LOGGER.log(Level.SEVERE, "Error connecting to database for job " + job.name(), e);
+                LOGGER.log(Level.SEVERE, "Error connecting to database for job " + job.name, e);
                 return Stream.empty();
             }
-
-            return job.queries()
-                .parallelStream()
-                .onClose(() -> closeConnection(conn))
-                .map(queryDef -> evaluateQuery(job, queryDef, conn));
         });
     }
 
-    private SampleResult evaluateQuery(Job job, QueryDef queryDef, Connection conn) {
-        final Supplier<SampleResult> queryRunner = () -> runQuery(queryDef, conn);
+    /**
+     * Hands a query to the {@link QueryExecutor}, which starts it by priority and expected execution time, unless its
+     * result is going to be taken from the cache anyway. Those are evaluated when the result is needed, so that they
+     * don't wait for a thread behind queries that actually have to be run.
+     */
+    private Supplier<SampleResult> schedule(Scrape scrape, QueryTask task, Supplier<SampleResult> evaluation) {
+        final var cached = scrape.cacheable
+            && task.stats.cachedUntil().filter(cachedUntil -> cachedUntil.isAfter(clock.instant())).isPresent();
+        if (cached) {
+            return evaluation;
+        }
+        return executor.submit(task.query.priority(), task.stats.averageDuration(), evaluation)::join;
+    }
 
-        return queryDef.cacheDuration()
-            .map(cacheDuration -> sampleCache.compute(CacheKey.of(job, queryDef), (key, value) -> {
-                if (value != null && value.sampleTime.plus(cacheDuration).isAfter(clock.instant())) {
-                    return value;
-                }
+    private SampleResult evaluateQuery(
+        JobPlan job,
+        Scrape scrape,
+        QueryTask task,
+        Supplier<SampleResult> execution,
+        Supplier<Optional<String>> changeProbe)
+    {
+        final Supplier<SampleResult> queryRunner = () -> {
+            if (scrape.isExpired()) {
+                return skipped(task);
+            }
+            final var result = execution.get();
+            task.stats.recordExecution(result);
+            scrape.executions.accept(task, result);
+            return result;
+        };
+        if (!scrape.cacheable) {
+            return queryRunner.get();
+        }
 
-                return queryRunner.get();
-            }))
+        return refreshInterval(job, task)
+            .map(cacheDuration -> {
+                synchronized (task) {
+                    final var now = clock.instant();
+                    final var cached = cache.get(task.cacheKey, now);
+                    final var value = cached
+                        .or(() -> snapshots.restore(task.cacheKey.digest()).map(this::compact))
+                        .orElse(null);
+
+                    // refreshes are due at a phase of the cache duration that differs per instance and query, so that
+                    // instances sharing a database don't all refresh at the same scrape
+                    if (value != null) {
+                        final var cachedUntil = jitter.next(task.phaseKey, value.sampleTime, cacheDuration);
+                        if (cachedUntil.isAfter(now)) {
+                            task.stats.recordCacheHit(cachedUntil);
+                            if (cached.isEmpty()) {
+                                cache.put(task.cacheKey, value, cachedUntil, now);
+                            }
+                            return value;
+                        }
+                    }
+
+                    // the probe runs before the query, so that changes in between are detected by the next probe
+                    final var changeToken = changeProbe.get();
+                    if (value != null && changeToken.isPresent() && changeToken.equals(value.changeToken)) {
+                        final var unchanged = value.renewed(now);
+                        final var cachedUntil = jitter.next(task.phaseKey, now, cacheDuration);
+                        task.stats.recordUnchanged(cachedUntil);
+                        snapshots.save(task.cacheKey.digest(), unchanged);
+                        cache.put(task.cacheKey, unchanged, retainUntil(task, cachedUntil, cacheDuration), now);
+                        return unchanged;
+                    }
+
+                    final var result = queryRunner.get();
+                    if (result.timedOut) {
+                        // not worth caching, the next scrape may have more time
+                        return result;
+                    }
+                    if (result.error.isEmpty()) {
+                        result.changeToken = changeToken;
+                    }
+                    compact(result);
+                    final var cachedUntil = jitter.next(task.phaseKey, result.sampleTime, cacheDuration);
+                    task.stats.setCachedUntil(cachedUntil);
+                    if (result.error.isEmpty()) {
+                        snapshots.save(task.cacheKey.digest(), result);
+                    }
+                    cache.put(task.cacheKey, result, retainUntil(task, cachedUntil, cacheDuration), clock.instant());
+                    return result;
+                }
+            })
             .orElseGet(queryRunner);
     }
 
-    private SampleResult runQuery(QueryDef queryDef, Connection conn) {
-        final var queryString = renderer.render(queryDef.query().resolve(config.queries()::get));
+    /**
+     * Until when a result is kept in the cache. Results of queries with a change probe are kept for another cache
+     * duration after they're due for a refresh, so that they can be served again if the probe shows they're current.
+     */
+    private static Instant retainUntil(QueryTask task, Instant cachedUntil, Duration cacheDuration) {
+        return task.query.changeProbe().isPresent() ? cachedUntil.plus(cacheDuration) : cachedUntil;
+    }
+
+    /**
+     * Runs the change probe of a query within the database limits, if it has one.
+     *
+     * @return the token of the probe's result, or empty if the query has no probe or the probe failed, in which case
+     *         the query has to be run anyway
+     */
+    private Optional<String> runChangeProbe(JobPlan job, Scrape scrape, QueryTask task, String url, Statement probe) {
+        if (task.query.changeProbe().isEmpty() || scrape.isExpired()) {
+            return Optional.empty();
+        }
+        final var token = new ChangeToken();
         final var result = new SampleResult(clock);
-        final var start = System.nanoTime();
-        try (final var stmt = conn.prepareStatement(queryString); final var rs = stmt.executeQuery()) {
-            result.samples = collectSamples(queryDef, rs);
+        executeQuery(job, scrape, task, url, task.query.changeProbe().get(), true, probe, token, result);
+        try {
+            if (result.error.isEmpty()) {
+                return Optional.of(token.get());
+            }
         } catch (SQLException e) {
-            LOGGER.log(Level.SEVERE, String.format("Error executing query: %s", queryString), e);
             result.error = Optional.of(e);
         }
-        result.scrapeDuration = Duration.ofNanos(System.nanoTime() - start);
-        return result;
+        LOGGER.log(
+            Level.WARNING,
+            "Change probe of query " + task.query.name() + " failed, running the query",
+            result.error.get());
+        return Optional.empty();
     }
 
-    private List<Collector.MetricFamilySamples> collectSamples(QueryDef queryDef, ResultSet rs) throws SQLException {
-        final var metricName = String.format("%s_%s", prefix, queryDef.name());
-        List<Collector.MetricFamilySamples.Sample> samples = new ArrayList<>();
+    /**
+     * Determines for how long the result of a query is cached. Without adaptive scheduling, that's the configured
+     * cache duration. With adaptive scheduling, the interval is stretched so that the average execution time of each of
+     * the job's queries takes no more than its share of the configured time budget per connection.
+     */
+    private Optional<Duration> refreshInterval(JobPlan job, QueryTask task) {
+        final var query = task.query;
+        final var stats = task.stats;
+        if (settings.queryTimeBudget().isEmpty()) {
+            return query.cacheDuration();
+        }
 
-        // The configuration model is wrong as it's not possible to have more than one sample with
-        // the same set of labels, so we're silently ignoring all but the first label value for now.
-        final var valueColumn = queryDef.values().iterator().next();
+        final var budget = settings.queryTimeBudget().get();
+        final var configured = query.cacheDuration().orElse(Duration.ZERO);
+        final var adaptive = stats.averageDuration()
+            .map(average -> Duration.ofNanos((long) (average.toNanos() * job.queryCount / budget)))
+            .orElse(Duration.ZERO);
+        final var interval = adaptive.compareTo(configured) > 0 ? adaptive : configured;
 
-        final var labelNames = new ArrayList<String>();
-        final var staticLabelValues = new ArrayList<String>();
-        final var resultLabelNames = new ArrayList<String>();
+        stats.setRefreshInterval(interval);
+        return interval.isZero() ? Optional.empty() : Optional.of(interval);
+    }
 
-        queryDef.staticLabels().forEach((labelName, labelValue) -> {
-            labelNames.add(labelName);
-            staticLabelValues.add(labelValue);
-        });
-        queryDef.labels().forEach(label -> {
-            resultLabelNames.add(label);
-            labelNames.add(label);
-        });
+    /** The result of a query that hasn't been run because the scrape deadline had been exceeded already. */
+    private SampleResult skipped(QueryTask task) {
+        final var result = new SampleResult(clock);
+        result.timedOut = true;
+        result.error = Optional.of(
+            new SQLTimeoutException("Scrape deadline exceeded before running query " + task.query.name()));
+        return result;
+    }
+
+    /** Converts the samples of a result that's going to be cached into their compact representation. */
+    private SampleResult compact(SampleResult result) {
+        result.samples = ColumnarSamples.of(result.samples, settings.cacheOffHeap());
+        return result;
+    }
+
+    private SampleResult runQuery(JobPlan job, Scrape scrape, QueryTask task, String url, Statement statement) {
+        final var result = new SampleResult(clock);
+        final var rows = new RowCollector(task, result);
+        executeQuery(job, scrape, task, url, statement, rows, result);
+        if (result.error.isEmpty()) {
+            rows.finish();
+        }
+        return result;
+    }
 
-        while (rs.next()) {
-            final var labelValues = new ArrayList<String>(staticLabelValues.size() + resultLabelNames.size());
-            labelValues.addAll(staticLabelValues);
-            resultLabelNames.forEach(labelName -> {
-                var labelValue = "";
+    /**
+     * Runs the partitions of a query concurrently, each one on a connection of its own. Each partition collects its rows
+     * separately, and they're added to the collector of the query once the partition is done, so that all rows end up in
+     * the same metric families.
+     */
+    private SampleResult runPartitions(JobPlan job, Scrape scrape, QueryTask task, ConnectionDef connDef, String url) {
+        final var result = new SampleResult(clock);
+        final var rows = new RowCollector(task, result);
+        final Statement statement = (sql, partitionRows) -> {
+            if (R2dbcQueries.isR2dbc(url)) {
+                final var conn = openOwnConnection(() -> openR2dbcConnection(job, scrape, connDef, url));
                 try {
-                    labelValue = rs.getString(labelName);
-                } catch (SQLException e) {
-                    LOGGER.log(
-                        Level.WARNING,
-                        String.format("Label %s not found as part of the query result set.", labelName));
+                    executeR2dbc(conn, scrape, sql, task, partitionRows);
+                } finally {
+                    R2dbcQueries.close(conn, scrape.deadline);
+                }
+            } else {
+                executeOnOwnConnection(job, scrape, connDef, url, sql, task, partitionRows);
+            }
+        };
+
+        final var start = System.nanoTime();
+        final var partitions = executor.invokeAll(
+            task.query.priority(),
+            task.stats.averageDuration(),
+            task.partitions.stream().map(variables -> (Supplier<SampleResult>) () -> {
+                if (scrape.isExpired()) {
+                    return skipped(task);
                 }
-                labelValues.add(labelValue);
-            });
+                final var partition = new SampleResult(clock);
+                final var partitionRows = rows.partition(partition);
+                executeQuery(job, scrape.with(variables), task, url, statement, partitionRows, partition);
+                rows.addAll(partitionRows);
+                return partition;
+            }).collect(toList()));
+        result.scrapeDuration = Duration.ofNanos(System.nanoTime() - start);
+
+        result.timedOut = partitions.stream().anyMatch(partition -> partition.timedOut);
+        result.error = partitions.stream().flatMap(partition -> partition.error.stream()).findFirst();
+        if (result.error.isEmpty()) {
+            rows.finish();
+        }
+        return result;
+    }
+
+    /** Runs a statement on a connection of its own, which is closed afterwards. */
+    private void executeOnOwnConnection(
+        JobPlan job,
+        Scrape scrape,
+        ConnectionDef connDef,
+        String url,
+        String sql,
+        QueryTask task,
+        RowConsumer rows) throws SQLException, InterruptedException
+    {
+        final var conn = openOwnConnection(() -> openConnection(job, scrape, connDef, url));
+        try {
+            executeStatement(conn, scrape, sql, task, rows);
+        } finally {
+            closeConnection(conn);
+        }
+    }
+
+    private static <C> C openOwnConnection(Connector<C> connector) throws SQLException, InterruptedException {
+        try {
+            return connector.connect();
+        } catch (ClassNotFoundException e) {
+            throw new SQLException("JDBC driver not found: " + e.getMessage(), e);
+        }
+    }
 
+    private void executeQuery(
+        JobPlan job,
+        Scrape scrape,
+        QueryTask task,
+        String url,
+        Statement statement,
+        RowConsumer rows,
+        SampleResult result)
+    {
+        executeQuery(job, scrape, task, url, task.queryTemplate, false, statement, rows, result);
+    }
+
+    /** Executes a query, or its change probe, within the database limits, recording failures in the result. */
+    @SuppressWarnings("try") // the permit is only held while the statement runs, never referenced
+    private void executeQuery(
+        JobPlan job,
+        Scrape scrape,
+        QueryTask task,
+        String url,
+        String template,
+        boolean changeProbe,
+        Statement statement,
+        RowConsumer rows,
+        SampleResult result)
+    {
+        final var query = task.query;
+        final var queryString = scrape.renderer.render(template);
+        final var event = new JfrEvents.Query();
+        event.begin();
+        // time spent waiting for the database limits isn't part of the query's duration
+        var durationNanos = 0L;
+        try (final var permit = governor.acquire(url)) {
+            final var start = System.nanoTime();
             try {
-                final var value = rs.getDouble(valueColumn);
-                samples.add(new Collector.MetricFamilySamples.Sample(metricName, labelNames, labelValues, value));
-            } catch (SQLException e) {
-                LOGGER.log(
-                    Level.SEVERE,
-                    String.format("Sample value %s not found as part of the query result set.", valueColumn),
-                    e);
+                statement.execute(queryString, rows);
+            } finally {
+                durationNanos = System.nanoTime() - start;
             }
+        } catch (SQLException e) {
+            if (scrape.isExpired()) {
+                LOGGER.log(Level.WARNING, String.format("Query cancelled at scrape deadline: %s", queryString), e);
+                result.timedOut = true;
+            } else {
+                LOGGER.log(Level.SEVERE, String.format("Error executing query: %s", queryString), e);
+            }
+            result.error = Optional.of(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.error = Optional.of(e);
+        }
+        result.scrapeDuration = Duration.ofNanos(durationNanos);
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.job = job.name;
+            event.query = query.name();
+            event.changeProbe = changeProbe;
+            event.connection = ConnectionUrls.redact(url);
+            event.rows = result.rows;
+            event.success = result.error.isEmpty();
+            event.commit();
         }
+    }
 
-        return List.of(
-            new Collector.MetricFamilySamples(
-                metricName,
-                Collector.Type.GAUGE,
-                queryDef.help().orElse("column " + valueColumn),
-                samples));
+    private static void executeR2dbc(
+        io.r2dbc.spi.Connection conn,
+        Scrape scrape,
+        String sql,
+        QueryTask task,
+        RowConsumer rows) throws SQLException, InterruptedException
+    {
+        R2dbcQueries.execute(
+            conn,
+            sql,
+            task.query.fetchSize().orElse(R2dbcQueries.DEFAULT_BATCH_SIZE),
+            scrape.deadline,
+            rows);
     }
-}
 
-class SampleResult {
-    final Instant sampleTime;
-    Duration scrapeDuration = Duration.ZERO;
-    Optional<Throwable> error = Optional.empty();
-    List<Collector.MetricFamilySamples> samples = new ArrayList<>();
+    @SuppressWarnings("try") // the cancellation is only scheduled while the statement runs, never referenced
+    private void executeStatement(Connection conn, Scrape scrape, String sql, QueryTask task, RowConsumer rows)
+        throws SQLException
+    {
+        final var query = task.query;
+        try (final var stmt = conn.prepareStatement(sql); final var cancellation = scrape.atDeadline(stmt::cancel)) {
+            if (query.maxRows().isPresent()) {
+                // one more than allowed, to be able to tell whether the result has been truncated
+                stmt.setMaxRows(Math.min(query.maxRows().get(), Integer.MAX_VALUE - 1) + 1);
+            }
+            if (query.fetchSize().isPresent()) {
+                stmt.setFetchSize(query.fetchSize().get());
+                executeWithCursor(conn, stmt, rows);
+            } else {
+                execute(stmt, rows);
+            }
+        }
+    }
 
-    SampleResult(Clock clock) {
-        this.sampleTime = clock.instant();
+    @SuppressWarnings("try") // the cancellation is only scheduled while the statement runs, never referenced
+    private static void probeStatement(Connection conn, Scrape scrape, String sql, RowConsumer rows)
+        throws SQLException
+    {
+        try (final var stmt = conn.prepareStatement(sql); final var cancellation = scrape.atDeadline(stmt::cancel)) {
+            execute(stmt, rows);
+        }
     }
-}
 
-@Value.Immutable(builder = false, prehash = true)
-abstract class CacheKey {
-    @Value.Parameter
-    abstract Job job();
+    private static void probeR2dbc(io.r2dbc.spi.Connection conn, Scrape scrape, String sql, RowConsumer rows)
+        throws SQLException, InterruptedException
+    {
+        R2dbcQueries.execute(conn, sql, R2dbcQueries.DEFAULT_BATCH_SIZE, scrape.deadline, rows);
+    }
 
-    @Value.Parameter
-    abstract QueryDef queryDef();
+    private static void execute(PreparedStatement stmt, RowConsumer rows) throws SQLException {
+        try (final var rs = stmt.executeQuery()) {
+            final var row = RowCollector.rowOf(rs);
+            while (rs.next() && rows.add(row)) {
+                // all work is done by the collector
+            }
+        }
+    }
+
+    /**
+     * Some drivers, e.g. the PostgreSQL one, ignore the fetch size and buffer the entire result set unless auto-commit
+     * is off, so the query is executed in a transaction that's rolled back afterwards. The connection must not be
+     * shared with other queries while doing so.
+     */
+    private static void executeWithCursor(Connection conn, PreparedStatement stmt, RowConsumer rows)
+        throws SQLException
+    {
+        final var autoCommit = conn.getAutoCommit();
+        if (!autoCommit) {
+            execute(stmt, rows);
+            return;
+        }
+
+        conn.setAutoCommit(false);
+        try {
+            execute(stmt, rows);
+        } finally {
+            try {
+                conn.rollback();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /** Establishes a connection of some kind. */
+    private interface Connector<C> {
+        C connect() throws ClassNotFoundException, SQLException, InterruptedException;
+    }
+
+    /** A connection that's opened when it's first needed. */
+    private static final class LazyConnection<C> {
+        private final Connector<C> connector;
+        private C conn;
+        private SQLException error;
+
+        LazyConnection(Connector<C> connector) {
+            this.connector = connector;
+        }
+
+        /**
+         * @throws SQLException
+         *             if the connection couldn't be opened, now or when it was first needed
+         */
+        synchronized C get() throws SQLException, InterruptedException {
+            if (error != null) {
+                throw error;
+            }
+            if (conn == null) {
+                try {
+                    conn = openOwnConnection(connector);
+                } catch (SQLException e) {
+                    error = e;
+                    throw e;
+                }
+            }
+            return conn;
+        }
+
+        synchronized void ifOpened(Consumer<C> action) {
+            if (conn != null) {
+                action.accept(conn);
+            }
+        }
+    }
 
-    static ImmutableCacheKey of(Job job, QueryDef queryDef) {
-        return ImmutableCacheKey.of(ImmutableJob.copyOf(job), ImmutableQueryDef.copyOf(queryDef));
+    /** Executes a rendered query and adds its rows to a consumer, e.g. a collector. */
+    private interface Statement {
+        void execute(String sql, RowConsumer rows) throws SQLException, InterruptedException;
+    }
+
+    /** How a single scrape renders templates and obtains connections. */
+    private static final class Scrape {
+        final TemplateRenderer renderer;
+        final ConnectionProvider connections;
+        /** Whether results may be taken from and put into the cache. */
+        final boolean cacheable;
+        final Optional<ScrapeDeadline> deadline;
+        /** Gets the result of each query that has actually been executed, as opposed to taken from the cache. */
+        final BiConsumer<QueryTask, SampleResult> executions;
+
+        Scrape(
+            TemplateRenderer renderer,
+            ConnectionProvider connections,
+            boolean cacheable,
+            Optional<ScrapeDeadline> deadline,
+            BiConsumer<QueryTask, SampleResult> executions)
+        {
+            this.renderer = requireNonNull(renderer);
+            this.connections = requireNonNull(connections);
+            this.cacheable = cacheable;
+            this.deadline = requireNonNull(deadline);
+            this.executions = requireNonNull(executions);
+        }
+
+        /** The same scrape, with additional variables for rendering templates. */
+        Scrape with(Map<String, ?> variables) {
+            return new Scrape(renderer.with(variables), connections, cacheable, deadline, executions);
+        }
+
+        boolean isExpired() {
+            return deadline.isPresent() && deadline.get().isExpired();
+        }
+
+        /** Runs a cancellation at the deadline of the scrape, if any. */
+        ScrapeDeadline.Scheduled atDeadline(ScrapeDeadline.Cancellation cancellation) {
+            return deadline.map(d -> d.schedule(cancellation)).orElse(() -> {});
+        }
     }
 }
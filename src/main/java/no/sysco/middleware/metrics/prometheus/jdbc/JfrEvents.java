@@ -0,0 +1,117 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the phases of a scrape, so that slow scrapes can be correlated with GC, lock
+ * contention and driver activity in a recording. Events that aren't enabled in a recording cost next to nothing, but
+ * fields that are expensive to compute should only be set if {@link Event#shouldCommit()} returns {@code true}.
+ * Connection URLs have to be {@linkplain ConnectionUrls#redact(String) redacted}.
+ */
+final class JfrEvents {
+
+    private static final String CATEGORY = "JDBC Exporter";
+
+    private JfrEvents() {
+        // only nested event types
+    }
+
+    @Name("no.sysco.jdbc.Connect")
+    @Label("Connect")
+    @Description("Opening a database connection")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Connect extends Event {
+        @Label("Job")
+        String job;
+
+        @Label("Connection")
+        String connection;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.sysco.jdbc.Query")
+    @Label("Query")
+    @Description("Executing a query and collecting the samples of its result")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Query extends Event {
+        @Label("Job")
+        String job;
+
+        @Label("Query")
+        String query;
+
+        @Label("Change Probe")
+        @Description("Whether the change probe of the query has been executed, rather than the query")
+        boolean changeProbe;
+
+        @Label("Connection")
+        String connection;
+
+        @Label("Rows")
+        long rows;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.sysco.jdbc.CollectSamples")
+    @Label("Collect Samples")
+    @Description("Reading the rows of a query result and converting them to samples")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CollectSamples extends Event {
+        @Label("Query")
+        String query;
+
+        @Label("Rows")
+        long rows;
+    }
+
+    @Name("no.sysco.jdbc.Render")
+    @Label("Render Template")
+    @Description("Rendering a connection, query or driver template")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Render extends Event {
+        @Label("Template Length")
+        @Description("Number of characters of the template")
+        int templateLength;
+    }
+
+    @Name("no.sysco.jdbc.ConfigReload")
+    @Label("Configuration Reload")
+    @Description("Checking the configuration for changes and reloading it")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ConfigReload extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Changed")
+        boolean changed;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("no.sysco.jdbc.Exposition")
+    @Label("Exposition")
+    @Description("Collecting all metrics and rendering them in the text format")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class Exposition extends Event {
+        @Label("Response Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+}
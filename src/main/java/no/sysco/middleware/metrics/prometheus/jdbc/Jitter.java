@@ -0,0 +1,50 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Spreads periodic work of many exporter instances and queries over time.
+ *
+ * <p>
+ * Each piece of periodic work, e.g. refreshing a cached query result, is assigned a phase within its period, derived
+ * from a hash of the instance id and the work's key. Work is then due at the instants {@code phase + k * period}
+ * since the epoch, instead of one period after it has last been done. Since the phase is deterministic, an instance
+ * keeps its schedule across restarts, while different instances and queries end up evenly spread over the period.
+ */
+final class Jitter {
+
+    private final String instanceId;
+
+    Jitter(String instanceId) {
+        this.instanceId = requireNonNull(instanceId);
+    }
+
+    /** Offset of the given work within its period, in {@code [0, period)}. */
+    Duration phase(String key, Duration period) {
+        final var periodMillis = period.toMillis();
+        if (periodMillis <= 0) {
+            return Duration.ZERO;
+        }
+        final var hash = ShardSelector.mix64(ShardSelector.fnv1a64(instanceId + '\0' + key));
+        return Duration.ofMillis(Math.floorMod(hash, periodMillis));
+    }
+
+    /** The first instant after {@code last} at which the given work is due again. */
+    Instant next(String key, Instant last, Duration period) {
+        final var periodMillis = period.toMillis();
+        if (periodMillis <= 0) {
+            return last.plus(period);
+        }
+        final var phaseMillis = phase(key, period).toMillis();
+        final var cycle = Math.floorDiv(last.toEpochMilli() - phaseMillis, periodMillis) + 1;
+        return Instant.ofEpochMilli(cycle * periodMillis + phaseMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "jitter for instance " + instanceId;
+    }
+}
@@ -0,0 +1,87 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * A histogram of durations with log-linear buckets, in the spirit of HdrHistogram: every power of two of microseconds
+ * is split into {@value #SUB_BUCKETS} buckets, so that percentiles are accurate to about 6% over the whole range from
+ * one microsecond to many hours, with a fixed, small memory footprint. Not thread-safe.
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Durations of 2^36 microseconds, i.e. about 19 hours, and more end up in the last bucket. */
+    private static final int MAX_EXPONENT = 36;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+
+    void record(Duration duration) {
+        final var micros = Math.max(0, duration.toNanos() / 1000);
+        counts[indexOf(micros)]++;
+        totalCount++;
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+    }
+
+    void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+    }
+
+    long count() {
+        return totalCount;
+    }
+
+    /**
+     * Returns the highest duration that's equivalent to the given percentile, or zero if nothing has been recorded.
+     *
+     * @param percentile
+     *            the percentile, between 0 and 100
+     */
+    Duration percentile(double percentile) {
+        if (totalCount == 0) {
+            return Duration.ZERO;
+        }
+
+        final var rank = Math.max(1, (long) Math.ceil(percentile / 100 * totalCount));
+        var seen = 0L;
+        var index = 0;
+        for (; index < BUCKETS - 1; index++) {
+            seen += counts[index];
+            if (seen >= rank) {
+                break;
+            }
+        }
+        return Duration.ofNanos(highestEquivalentMicros(index) * 1000);
+    }
+
+    static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        final var exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        final var shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    static long highestEquivalentMicros(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final var shift = index / SUB_BUCKETS - 1;
+        final var subBucket = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
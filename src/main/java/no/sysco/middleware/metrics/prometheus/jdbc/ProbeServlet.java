@@ -0,0 +1,67 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.exporter.common.TextFormat;
+
+/**
+ * Runs a module against the target given by the request parameters {@code module} and {@code target}, in the style of
+ * the Prometheus multi-target exporter pattern.
+ */
+class ProbeServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient JdbcCollector collector;
+    private final transient Optional<Duration> defaultTimeout;
+    private final Duration timeoutOffset;
+
+    ProbeServlet(JdbcCollector collector, Optional<Duration> defaultTimeout, Duration timeoutOffset) {
+        this.collector = requireNonNull(collector);
+        this.defaultTimeout = requireNonNull(defaultTimeout);
+        this.timeoutOffset = requireNonNull(timeoutOffset);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final var module = req.getParameter("module");
+        final var target = req.getParameter("target");
+        if (module == null || module.isEmpty() || target == null || target.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "module and target are required");
+            return;
+        }
+
+        final Optional<List<Collector.MetricFamilySamples>> samples;
+        try {
+            final var deadline =
+                ScrapeDeadline.of(req.getHeader(ScrapeDeadline.TIMEOUT_HEADER), defaultTimeout, timeoutOffset);
+            samples = ScrapeDeadline.call(deadline, () -> collector.probe(module, target));
+        } catch (IllegalArgumentException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        if (samples.isEmpty()) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "unknown module: " + module);
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType(TextFormat.CONTENT_TYPE_004);
+        try (final var writer = new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8)) {
+            TextFormat.write004(writer, Collections.enumeration(samples.get()));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+
+/**
+ * Shows statistics of all queries as JSON, the ones that took the most time in total first. The optional parameter
+ * {@code limit} restricts the output to the top N queries.
+ */
+class QueryDebugServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+        .registerModule(new Jdk8Module())
+        .enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final transient QueryStatistics statistics;
+
+    QueryDebugServlet(QueryStatistics statistics) {
+        this.statistics = requireNonNull(statistics);
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final int limit;
+        try {
+            limit = req.getParameter("limit") == null ? Integer.MAX_VALUE : Integer.parseInt(req.getParameter("limit"));
+        } catch (NumberFormatException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid limit: " + req.getParameter("limit"));
+            return;
+        }
+        if (limit < 0) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid limit: " + limit);
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json; charset=utf-8");
+        MAPPER.writeValue(resp.getOutputStream(), statistics.summaries(limit));
+    }
+}
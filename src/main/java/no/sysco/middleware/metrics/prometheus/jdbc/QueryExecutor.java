@@ -0,0 +1,149 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+
+/**
+ * Runs the queries of all scrapes on a bounded number of threads.
+ *
+ * <p>
+ * With bounded parallelism, the order in which queries are started determines how long a scrape takes: if the longest
+ * query starts last, the scrape takes as long as that query plus everything before it. Waiting queries are therefore
+ * started by priority and, among queries of the same priority, longest expected execution time first, i.e. in a
+ * longest-processing-time-first schedule. Queries that haven't been executed before are assumed to be the longest
+ * ones, and queries of the same priority and expected execution time are started in submission order.
+ */
+final class QueryExecutor {
+
+    private static final Comparator<Work> ORDER = Comparator.<Work> comparingInt(work -> -work.priority)
+        .thenComparingLong(work -> -work.expectedNanos)
+        .thenComparingLong(work -> work.sequence);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Gauge waiting;
+
+    QueryExecutor(String metricPrefix, ExporterSettings settings, CollectorRegistry registry) {
+        final var threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            settings.queryThreads(),
+            settings.queryThreads(),
+            1,
+            TimeUnit.MINUTES,
+            new PriorityBlockingQueue<>(16, (a, b) -> ORDER.compare((Work) a, (Work) b)),
+            r -> {
+                final var thread = new Thread(r, "query-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.waiting = Gauge.build()
+                .name(metricPrefix + "_queries_waiting")
+                .help("Number of queries waiting for a thread.")
+                .register(registry);
+    }
+
+    /**
+     * Schedules a query.
+     *
+     * @param priority
+     *            the query's {@linkplain no.sysco.middleware.metrics.prometheus.jdbc.config.QueryOptions#priority()
+     *            priority}
+     * @param expectedDuration
+     *            how long the query usually takes, if known
+     */
+    <T> CompletableFuture<T> submit(int priority, Optional<Duration> expectedDuration, Supplier<T> query) {
+        final var result = new CompletableFuture<T>();
+        executor.execute(work(priority, expectedDuration, query, result));
+        return result;
+    }
+
+    /**
+     * Runs queries concurrently, e.g. the partitions of a query, and waits for all of them. The calling thread runs the
+     * first query itself, and afterwards each of the others that hasn't been started yet, so that a query running on
+     * one of the executor's threads never waits for further threads that may not become available.
+     *
+     * @return the results in the order of the queries
+     */
+    <T> List<T> invokeAll(int priority, Optional<Duration> expectedDuration, List<Supplier<T>> queries) {
+        if (queries.isEmpty()) {
+            return List.of();
+        }
+        final var works = new ArrayList<Work>();
+        final var results = new ArrayList<CompletableFuture<T>>();
+        for (final var query : queries.subList(1, queries.size())) {
+            final var result = new CompletableFuture<T>();
+            final var work = work(priority, expectedDuration, query, result);
+            executor.execute(work);
+            works.add(work);
+            results.add(result);
+        }
+
+        final var all = new ArrayList<T>();
+        all.add(queries.get(0).get());
+        for (int i = 0; i < works.size(); i++) {
+            works.get(i).run();
+            all.add(results.get(i).join());
+        }
+        return all;
+    }
+
+    private <T> Work work(
+        int priority,
+        Optional<Duration> expectedDuration,
+        Supplier<T> query,
+        CompletableFuture<T> result)
+    {
+        waiting.inc();
+        return new Work(
+            priority,
+            expectedDuration.map(Duration::toNanos).orElse(Long.MAX_VALUE),
+            sequence.getAndIncrement(),
+            () -> {
+                waiting.dec();
+                try {
+                    result.complete(query.get());
+                } catch (RuntimeException | Error e) {
+                    result.completeExceptionally(e);
+                }
+            });
+    }
+
+    private static final class Work implements Runnable {
+        final int priority;
+        final long expectedNanos;
+        final long sequence;
+        final Runnable action;
+        /** Whether the work has been started, either by the executor or by the thread waiting for it. */
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Work(int priority, long expectedNanos, long sequence, Runnable action) {
+            this.priority = priority;
+            this.expectedNanos = expectedNanos;
+            this.sequence = sequence;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            if (started.compareAndSet(false, true)) {
+                action.run();
+            }
+        }
+    }
+}
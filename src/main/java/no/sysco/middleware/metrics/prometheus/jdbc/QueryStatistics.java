@@ -0,0 +1,216 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.stream.Collectors.toList;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.prometheus.client.Collector;
+
+/**
+ * Keeps track of how the queries of all jobs have been performing, per connection. Statistics survive configuration
+ * reloads as long as the job, query and connection definitions stay the same.
+ */
+final class QueryStatistics {
+
+    /** Weight of the most recent execution time in the moving average. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    /** Latency percentiles cover between one and two windows of recent executions. */
+    private static final Duration LATENCY_WINDOW = Duration.ofMinutes(5);
+
+    private final String metricPrefix;
+    private final Map<ImmutableCacheKey, Entry> entries = new ConcurrentHashMap<>();
+
+    QueryStatistics(String metricPrefix) {
+        this.metricPrefix = requireNonNull(metricPrefix);
+    }
+
+    /** Statistics of a single query on a single connection. */
+    static final class Entry {
+        final CacheKey key;
+        final String source;
+
+        private double averageNanos = Double.NaN;
+        private volatile Duration refreshInterval;
+
+        private long executions;
+        private long errors;
+        private long cacheHits;
+        private long unchanged;
+        private long totalNanos;
+        private long lastRows;
+        private long lastSamples;
+        private Instant lastExecution;
+        private Instant cachedUntil;
+        private String lastError;
+        private Instant lastErrorTime;
+
+        private final LatencyHistogram currentLatencies = new LatencyHistogram();
+        private final LatencyHistogram previousLatencies = new LatencyHistogram();
+        private long windowStartNanos = System.nanoTime();
+
+        Entry(CacheKey key, String source) {
+            this.key = key;
+            this.source = source;
+        }
+
+        synchronized void recordExecution(Duration duration) {
+            final var nanos = (double) duration.toNanos();
+            averageNanos = Double.isNaN(averageNanos) ? nanos : EWMA_ALPHA * nanos + (1 - EWMA_ALPHA) * averageNanos;
+
+            final var now = System.nanoTime();
+            if (now - windowStartNanos > LATENCY_WINDOW.toNanos()) {
+                previousLatencies.reset();
+                previousLatencies.add(currentLatencies);
+                currentLatencies.reset();
+                windowStartNanos = now;
+            }
+            currentLatencies.record(duration);
+            executions++;
+            totalNanos += duration.toNanos();
+        }
+
+        /** Records an actual execution of the query, as opposed to one that has been answered from the cache. */
+        synchronized void recordExecution(SampleResult result) {
+            recordExecution(result.scrapeDuration);
+            lastRows = result.rows;
+            lastSamples = result.samples.stream().mapToLong(family -> family.samples.size()).sum();
+            lastExecution = result.sampleTime;
+            if (result.error.isPresent()) {
+                errors++;
+                lastError = result.error.get().toString();
+                lastErrorTime = result.sampleTime;
+            }
+        }
+
+        synchronized void recordCacheHit(Instant cachedUntil) {
+            cacheHits++;
+            this.cachedUntil = cachedUntil;
+        }
+
+        /** Records that the cached result has been kept, as the change probe showed that it's still current. */
+        synchronized void recordUnchanged(Instant cachedUntil) {
+            unchanged++;
+            this.cachedUntil = cachedUntil;
+        }
+
+        synchronized void setCachedUntil(Instant cachedUntil) {
+            this.cachedUntil = cachedUntil;
+        }
+
+        /** Until when the last result of the query is cached, if it's cached at all. */
+        synchronized Optional<Instant> cachedUntil() {
+            return Optional.ofNullable(cachedUntil);
+        }
+
+        /** Exponentially weighted moving average of the execution time, if the query has been executed before. */
+        synchronized Optional<Duration> averageDuration() {
+            return Double.isNaN(averageNanos) ? Optional.empty() : Optional.of(Duration.ofNanos((long) averageNanos));
+        }
+
+        synchronized long totalNanos() {
+            return totalNanos;
+        }
+
+        void setRefreshInterval(Duration refreshInterval) {
+            this.refreshInterval = refreshInterval;
+        }
+
+        /** A summary of these statistics, meant to be rendered as JSON. */
+        synchronized Map<String, Object> summary() {
+            final var latencies = new LatencyHistogram();
+            latencies.add(previousLatencies);
+            latencies.add(currentLatencies);
+
+            final var summary = new LinkedHashMap<String, Object>();
+            summary.put("source", source);
+            summary.put("job", key.job().name());
+            summary.put("query", key.query().name());
+            summary.put("connection", ConnectionUrls.redact(key.connection().url()));
+            summary.put("executions", executions);
+            summary.put("errors", errors);
+            summary.put("total_seconds", seconds(totalNanos));
+            summary.put("recent_executions", latencies.count());
+            summary.put("p50_seconds", seconds(latencies.percentile(50).toNanos()));
+            summary.put("p90_seconds", seconds(latencies.percentile(90).toNanos()));
+            summary.put("p99_seconds", seconds(latencies.percentile(99).toNanos()));
+            summary.put("max_seconds", seconds(latencies.percentile(100).toNanos()));
+            summary.put("last_rows", lastRows);
+            summary.put("last_samples", lastSamples);
+            summary.put("last_execution", Optional.ofNullable(lastExecution).map(Instant::toString));
+            summary.put("cache_hits", cacheHits);
+            summary.put("unchanged_probes", unchanged);
+            summary.put("cached_until", Optional.ofNullable(cachedUntil).map(Instant::toString));
+            summary.put("refresh_interval_seconds", Optional.ofNullable(refreshInterval).map(i -> seconds(i.toNanos())));
+            summary.put("last_error", Optional.ofNullable(lastError));
+            summary.put("last_error_time", Optional.ofNullable(lastErrorTime).map(Instant::toString));
+            return summary;
+        }
+
+        private static double seconds(long nanos) {
+            return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+
+    Entry get(ImmutableCacheKey key, String source) {
+        return entries.computeIfAbsent(key, k -> new Entry(k, source));
+    }
+
+    /** Discards the statistics of all queries but the given ones, e.g. when queries have been removed. */
+    void retain(Set<ImmutableCacheKey> keys) {
+        entries.keySet().retainAll(keys);
+    }
+
+    /** Summaries of the statistics of all queries, the ones that took the most time in total first. */
+    List<Map<String, Object>> summaries(int limit) {
+        // totals keep changing while sorting, so sort by a snapshot of them
+        return entries.values()
+            .stream()
+            .map(entry -> Map.entry(entry.totalNanos(), entry))
+            .sorted(Map.Entry.<Long, Entry>comparingByKey().reversed())
+            .limit(limit)
+            .map(entry -> entry.getValue().summary())
+            .collect(toList());
+    }
+
+    List<Collector.MetricFamilySamples> collect() {
+        final var name = metricPrefix + "_query_refresh_interval_seconds";
+        final var labelNames = List.of("job", "query", "connection");
+        final var samples = new ArrayList<Collector.MetricFamilySamples.Sample>();
+        entries.values().forEach(entry -> {
+            final var refreshInterval = entry.refreshInterval;
+            if (refreshInterval != null) {
+                samples.add(
+                    new Collector.MetricFamilySamples.Sample(
+                        name,
+                        labelNames,
+                        List.of(
+                            entry.key.job().name(),
+                            entry.key.query().name(),
+                            ConnectionUrls.redact(entry.key.connection().url())),
+                        refreshInterval.toNanos() / 1e9));
+            }
+        });
+
+        if (samples.isEmpty()) {
+            return List.of();
+        }
+
+        return List.of(
+            new Collector.MetricFamilySamples(
+                name,
+                Collector.Type.GAUGE,
+                "Effective refresh interval of a query, as chosen by adaptive scheduling.",
+                samples));
+    }
+}
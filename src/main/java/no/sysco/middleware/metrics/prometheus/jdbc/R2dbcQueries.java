@@ -0,0 +1,334 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.r2dbc.spi.Connection;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.R2dbcException;
+import io.r2dbc.spi.Result;
+import io.r2dbc.spi.RowMetadata;
+
+/**
+ * Runs queries on databases with {@code r2dbc:} connection URLs via an R2DBC driver instead of JDBC.
+ *
+ * <p>
+ * Rows are streamed from the driver with bounded demand, i.e. at most a fetch size of rows is requested at a time, and
+ * turned into samples as they arrive on the driver's threads. The thread running a query only waits for its
+ * completion instead of blocking in socket reads for every batch of rows.
+ */
+final class R2dbcQueries {
+
+    private static final Logger LOGGER = Logger.getLogger(R2dbcQueries.class.getName());
+
+    /** Number of rows requested at a time if the query doesn't have a fetch size. */
+    static final int DEFAULT_BATCH_SIZE = 256;
+
+    private R2dbcQueries() {
+    }
+
+    static boolean isR2dbc(String url) {
+        return url.startsWith("r2dbc:");
+    }
+
+    /**
+     * Connects to a database via R2DBC, using the driver found for the URL via the service loader.
+     *
+     * @param url
+     *            R2DBC URL of the database
+     * @param props
+     *            {@code user} and {@code password}, if any
+     * @param deadline
+     *            how long to wait for the connection, if not indefinitely
+     */
+    static Connection connect(String url, Map<String, String> props, Optional<ScrapeDeadline> deadline)
+        throws SQLException, InterruptedException
+    {
+        final var options = ConnectionFactoryOptions.parse(url).mutate();
+        Optional.ofNullable(props.get("user")).ifPresent(user -> options.option(ConnectionFactoryOptions.USER, user));
+        Optional.ofNullable(props.get("password"))
+            .ifPresent(password -> options.option(ConnectionFactoryOptions.PASSWORD, password));
+        final CompletableFuture<? extends Connection> connection;
+        try {
+            connection = first(ConnectionFactories.get(options.build()).create());
+        } catch (IllegalStateException e) {
+            // no driver for the URL
+            throw new SQLException(e.getMessage(), e);
+        }
+        try {
+            return await(connection, deadline);
+        } catch (SQLTimeoutException | InterruptedException e) {
+            // nobody is going to use the connection once it's there
+            connection.thenAccept(conn -> first(conn.close()));
+            throw e;
+        }
+    }
+
+    /**
+     * Closes a connection, waiting until it's closed or the deadline has passed, in which case it's closed in the
+     * background.
+     */
+    static void close(Connection conn, Optional<ScrapeDeadline> deadline) {
+        try {
+            await(first(conn.close()), deadline);
+            LOGGER.log(Level.FINE, "Closed connection " + conn);
+        } catch (SQLTimeoutException e) {
+            LOGGER.log(Level.FINE, "Still closing connection " + conn + " at scrape deadline");
+        } catch (SQLException e) {
+            LOGGER.log(Level.WARNING, "Error closing connection.", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs a query and adds all its rows to a consumer, e.g. a collector.
+     *
+     * @param fetchSize
+     *            maximum number of rows requested from the driver at a time
+     * @param deadline
+     *            when to cancel the query, if any
+     */
+    static void execute(
+        Connection conn,
+        String sql,
+        int fetchSize,
+        Optional<ScrapeDeadline> deadline,
+        RowConsumer rows) throws SQLException, InterruptedException
+    {
+        final var subscriber = new ResultSubscriber(rows, fetchSize);
+        try {
+            conn.createStatement(sql).fetchSize(fetchSize).execute().subscribe(subscriber);
+            if (deadline.isPresent()) {
+                subscriber.done.get(deadline.get().remaining().toNanos(), TimeUnit.NANOSECONDS);
+            } else {
+                subscriber.done.get();
+            }
+        } catch (TimeoutException e) {
+            subscriber.cancel();
+            throw new SQLTimeoutException("Query cancelled at scrape deadline", e);
+        } catch (InterruptedException e) {
+            subscriber.cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            throw toSqlException(e.getCause());
+        } catch (R2dbcException e) {
+            throw toSqlException(e);
+        }
+    }
+
+    /** Subscribes to the first element of a publisher, or its completion if it doesn't have any. */
+    private static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+        final var future = new CompletableFuture<T>();
+        publisher.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSubscribe(Subscription s) {
+                s.request(1);
+            }
+
+            @Override
+            public void onNext(T t) {
+                future.complete(t);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                future.completeExceptionally(t);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /** Waits for a future to complete, for no longer than until the deadline, if any. */
+    private static <T> T await(CompletableFuture<T> future, Optional<ScrapeDeadline> deadline)
+        throws SQLException, InterruptedException
+    {
+        try {
+            if (deadline.isPresent()) {
+                return future.get(deadline.get().remaining().toNanos(), TimeUnit.NANOSECONDS);
+            }
+            return future.get();
+        } catch (TimeoutException e) {
+            throw new SQLTimeoutException("Scrape deadline exceeded", e);
+        } catch (ExecutionException e) {
+            throw toSqlException(e.getCause());
+        }
+    }
+
+    private static SQLException toSqlException(Throwable t) {
+        if (t instanceof SQLException) {
+            return (SQLException) t;
+        }
+        if (t instanceof R2dbcException) {
+            final var e = (R2dbcException) t;
+            return new SQLException(e.getMessage(), e.getSqlState(), e.getErrorCode(), e);
+        }
+        return new SQLException(t);
+    }
+
+    /**
+     * Consumes the results of a statement one after the other, requesting rows of each result in batches. Completes
+     * once all rows have been added, or as soon as the collector ignores a row, in which case the remaining rows are
+     * cancelled.
+     */
+    private static final class ResultSubscriber implements Subscriber<Result> {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final RowConsumer rows;
+        private final int batchSize;
+
+        private Subscription results;
+        private Subscription currentRows;
+        private boolean resultsComplete;
+
+        ResultSubscriber(RowConsumer rows, int batchSize) {
+            this.rows = rows;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public synchronized void onSubscribe(Subscription s) {
+            results = s;
+            s.request(1);
+        }
+
+        @Override
+        public void onNext(Result result) {
+            result.map((row, metadata) -> rows.add(new R2dbcRow(row, metadata))).subscribe(new Subscriber<Boolean>() {
+                private long received;
+
+                @Override
+                public void onSubscribe(Subscription s) {
+                    synchronized (ResultSubscriber.this) {
+                        currentRows = s;
+                    }
+                    s.request(batchSize);
+                }
+
+                @Override
+                public void onNext(Boolean added) {
+                    if (!added) {
+                        cancel();
+                        done.complete(null);
+                    } else if (++received % batchSize == 0) {
+                        currentRows.request(batchSize);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    ResultSubscriber.this.onError(t);
+                }
+
+                @Override
+                public void onComplete() {
+                    synchronized (ResultSubscriber.this) {
+                        currentRows = null;
+                        if (resultsComplete) {
+                            done.complete(null);
+                        } else {
+                            results.request(1);
+                        }
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            cancel();
+            done.completeExceptionally(t);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            resultsComplete = true;
+            if (currentRows == null) {
+                done.complete(null);
+            }
+        }
+
+        synchronized void cancel() {
+            if (currentRows != null) {
+                currentRows.cancel();
+            }
+            if (results != null) {
+                results.cancel();
+            }
+        }
+    }
+
+    private static final class R2dbcRow implements RowCollector.Row {
+        private final io.r2dbc.spi.Row row;
+        private final RowMetadata metadata;
+
+        R2dbcRow(io.r2dbc.spi.Row row, RowMetadata metadata) {
+            this.row = row;
+            this.metadata = metadata;
+        }
+
+        @Override
+        public String getString(String column) throws SQLException {
+            final var value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        /** Like JDBC, {@code NULL} values are returned as zero. */
+        @Override
+        public double getDouble(String column) throws SQLException {
+            final var value = get(column);
+            if (value == null) {
+                return 0;
+            }
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            try {
+                return Double.parseDouble(value.toString());
+            } catch (NumberFormatException e) {
+                throw new SQLException(String.format("Column %s is not numeric: %s", column, value), e);
+            }
+        }
+
+        @Override
+        public int columnCount() {
+            return metadata.getColumnMetadatas().size();
+        }
+
+        @Override
+        public String getString(int column) throws SQLException {
+            try {
+                final var value = row.get(column - 1);
+                return value == null ? null : value.toString();
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new SQLException("Unknown column " + column, e);
+            }
+        }
+
+        private Object get(String column) throws SQLException {
+            try {
+                return row.get(column);
+            } catch (NoSuchElementException | IllegalArgumentException e) {
+                throw new SQLException("Unknown column " + column, e);
+            }
+        }
+    }
+}
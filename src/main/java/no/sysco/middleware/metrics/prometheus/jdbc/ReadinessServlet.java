@@ -0,0 +1,26 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Reports whether the exporter is ready to be scraped. */
+class ReadinessServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private volatile boolean ready;
+
+    void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setStatus(ready ? HttpServletResponse.SC_OK : HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        resp.setContentType("text/plain; charset=utf-8");
+        resp.getWriter().println(ready ? "ready" : "not ready");
+    }
+}
@@ -0,0 +1,201 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.RelabelAction;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.RelabelReplacement;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.RelabelRule;
+
+/**
+ * Applies the relabel rules of a metric to the label values of a row.
+ *
+ * <p>
+ * Rules are compiled once: the labels they refer to are resolved to indexes into an array of label values that has
+ * room for the metric's labels followed by all target labels of the rules, so that applying them to a row only looks
+ * up array elements. The labels of the resulting samples are known upfront, too: all labels except the ones dropped by
+ * {@link RelabelAction#LABELDROP} and not set again by a later rule, and except the ones starting with {@code __},
+ * which, like in Prometheus, are meant as temporary labels only.
+ */
+final class Relabeler {
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    /** Number of label values a row has to have room for. */
+    final int width;
+    /** Names of the labels of the resulting samples. */
+    final List<String> outputNames;
+
+    private final Rule[] rules;
+    /** Index of each output label in the array of label values, or {@code null} if they're the same. */
+    private final int[] outputIndexes;
+
+    Relabeler(List<String> labelNames, List<RelabelRule> rules) {
+        final var names = new ArrayList<>(labelNames);
+        final var dropped = new BitSet();
+        this.rules = new Rule[rules.size()];
+        for (int i = 0; i < this.rules.length; i++) {
+            final var rule = rules.get(i);
+            final var sources = rule.sourceLabels().stream().mapToInt(name -> indexOf(names, name)).toArray();
+            final var target = rule.targetLabel().map(name -> indexOf(names, name)).orElse(-1);
+            final var regex = Pattern.compile(rule.regex());
+
+            var labelDrops = new int[0];
+            if (rule.action() == RelabelAction.LABELDROP) {
+                labelDrops = names.stream().filter(name -> regex.matcher(name).matches()).mapToInt(names::indexOf).toArray();
+                for (final var index : labelDrops) {
+                    dropped.set(index);
+                }
+            }
+            if (target >= 0) {
+                dropped.clear(target);
+            }
+            this.rules[i] = new Rule(rule, regex, sources, target, labelDrops);
+        }
+
+        this.width = names.size();
+        final var outputNames = new ArrayList<String>();
+        final var outputIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < names.size(); i++) {
+            if (!dropped.get(i) && !names.get(i).startsWith("__")) {
+                outputNames.add(names.get(i));
+                outputIndexes.add(i);
+            }
+        }
+        this.outputNames = List.copyOf(outputNames);
+        this.outputIndexes = outputNames.equals(names) ? null : outputIndexes.stream().mapToInt(i -> i).toArray();
+    }
+
+    private static int indexOf(List<String> names, String name) {
+        final var index = names.indexOf(name);
+        if (index >= 0) {
+            return index;
+        }
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /**
+     * Applies all rules.
+     *
+     * @param values
+     *            the values of the metric's labels, followed by room for the target labels, i.e. {@link #width} values
+     *            in total
+     * @return the label values of the resulting sample, in the order of {@link #outputNames}, or {@code null} if the
+     *         row is to be dropped
+     */
+    String[] apply(String[] values) {
+        if (rules.length == 0) {
+            return values;
+        }
+        for (final var rule : rules) {
+            if (!rule.apply(values)) {
+                return null;
+            }
+        }
+
+        if (outputIndexes == null) {
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null) {
+                    values[i] = "";
+                }
+            }
+            return values;
+        }
+        final var output = new String[outputIndexes.length];
+        for (int i = 0; i < output.length; i++) {
+            final var value = values[outputIndexes[i]];
+            output[i] = value == null ? "" : value;
+        }
+        return output;
+    }
+
+    private static final class Rule {
+        final RelabelAction action;
+        final String separator;
+        final Pattern regex;
+        final RelabelReplacement replacement;
+        final long modulus;
+        final int[] sources;
+        final int target;
+        final int[] labelDrops;
+
+        Rule(RelabelRule rule, Pattern regex, int[] sources, int target, int[] labelDrops) {
+            this.action = rule.action();
+            this.separator = rule.separator();
+            this.regex = regex;
+            this.replacement = RelabelReplacement.parse(rule.replacement());
+            this.modulus = rule.modulus().orElse(1L);
+            this.sources = sources;
+            this.target = target;
+            this.labelDrops = labelDrops;
+        }
+
+        /** @return whether the row is kept */
+        boolean apply(String[] values) {
+            switch (action) {
+                case KEEP:
+                    return regex.matcher(join(values)).matches();
+                case DROP:
+                    return !regex.matcher(join(values)).matches();
+                case REPLACE:
+                    final var matcher = regex.matcher(join(values));
+                    if (matcher.matches()) {
+                        values[target] = replacement.expand(matcher);
+                    }
+                    return true;
+                case LABELDROP:
+                    for (final var index : labelDrops) {
+                        values[index] = null;
+                    }
+                    return true;
+                case HASHMOD:
+                    values[target] = Long.toString(Long.remainderUnsigned(hash(join(values)), modulus));
+                    return true;
+                default:
+                    throw new IllegalStateException("unknown relabel action: " + action);
+            }
+        }
+
+        private String join(String[] values) {
+            if (sources.length == 1) {
+                return value(values, sources[0]);
+            }
+            final var joined = new StringBuilder();
+            for (int i = 0; i < sources.length; i++) {
+                if (i > 0) {
+                    joined.append(separator);
+                }
+                joined.append(value(values, sources[i]));
+            }
+            return joined.toString();
+        }
+
+        private static String value(String[] values, int index) {
+            return values[index] == null ? "" : values[index];
+        }
+
+        /** Same hash as Prometheus, i.e. the lower 64 bits of the MD5 sum, so that both agree on sharding. */
+        private static long hash(String value) {
+            final var digest = MD5.get().digest(value.getBytes(UTF_8));
+            var hash = 0L;
+            for (int i = 8; i < 16; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        }
+    }
+
+}
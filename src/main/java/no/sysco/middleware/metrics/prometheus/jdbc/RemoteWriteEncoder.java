@@ -0,0 +1,120 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import io.prometheus.client.Collector;
+
+/**
+ * Encodes samples as a Prometheus remote write {@code WriteRequest} protobuf message.
+ *
+ * <p>
+ * Only the few fields of the remote write protocol that are needed to transport samples are supported, which is why
+ * the messages are encoded by hand instead of pulling in protobuf and the generated classes:
+ *
+ * <pre>
+ * message WriteRequest { repeated TimeSeries timeseries = 1; }
+ * message TimeSeries   { repeated Label labels = 1; repeated Sample samples = 2; }
+ * message Label        { string name = 1; string value = 2; }
+ * message Sample       { double value = 1; int64 timestamp = 2; }
+ * </pre>
+ */
+final class RemoteWriteEncoder {
+
+    private RemoteWriteEncoder() {
+        // static utility class
+    }
+
+    /** A single sample of a time series, with all labels (including the metric name) sorted by name. */
+    static final class Series {
+        final String[] labelNames;
+        final String[] labelValues;
+        final double value;
+        final long timestampMillis;
+
+        Series(Map<String, String> labels, double value, long timestampMillis) {
+            final var sorted = new TreeMap<>(labels);
+            this.labelNames = sorted.keySet().toArray(new String[0]);
+            this.labelValues = sorted.values().toArray(new String[0]);
+            this.value = value;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+
+    /** Turns metric family samples into series, all sharing the given timestamp. */
+    static List<Series> toSeries(Collection<Collector.MetricFamilySamples> familySamples, long timestampMillis) {
+        final var series = new ArrayList<Series>();
+        for (final var family : familySamples) {
+            for (final var sample : family.samples) {
+                final var labels = new TreeMap<String, String>();
+                for (int i = 0; i < sample.labelNames.size(); i++) {
+                    labels.put(sample.labelNames.get(i), sample.labelValues.get(i));
+                }
+                labels.put("__name__", sample.name);
+                series.add(new Series(labels, sample.value, timestampMillis));
+            }
+        }
+        return series;
+    }
+
+    static byte[] encode(Collection<Series> series) {
+        final var request = new ByteArrayOutputStream();
+        final var timeSeries = new ByteArrayOutputStream();
+        final var message = new ByteArrayOutputStream();
+        for (final var s : series) {
+            timeSeries.reset();
+            for (int i = 0; i < s.labelNames.length; i++) {
+                message.reset();
+                writeString(message, 1, s.labelNames[i]);
+                writeString(message, 2, s.labelValues[i]);
+                writeMessage(timeSeries, 1, message);
+            }
+            message.reset();
+            writeTag(message, 1, 1);
+            writeFixed64(message, Double.doubleToRawLongBits(s.value));
+            writeTag(message, 2, 0);
+            writeVarint(message, s.timestampMillis);
+            writeMessage(timeSeries, 2, message);
+
+            writeMessage(request, 1, timeSeries);
+        }
+        return request.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, int field, String value) {
+        final var bytes = value.getBytes(UTF_8);
+        writeTag(out, field, 2);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeMessage(ByteArrayOutputStream out, int field, ByteArrayOutputStream message) {
+        writeTag(out, field, 2);
+        writeVarint(out, message.size());
+        out.writeBytes(message.toByteArray());
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void writeFixed64(ByteArrayOutputStream out, long value) {
+        for (int i = 0; i < 8; i++) {
+            out.write((int) (value >>> (8 * i)) & 0xFF);
+        }
+    }
+}
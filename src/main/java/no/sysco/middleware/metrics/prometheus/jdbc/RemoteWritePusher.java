@@ -0,0 +1,237 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.xerial.snappy.Snappy;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Periodically collects all metrics of a registry and pushes them to a Prometheus remote write endpoint.
+ *
+ * <p>
+ * Collected samples are put into a bounded queue. When the queue is full, collecting blocks for up to one interval
+ * before samples are dropped, so that a slow endpoint slows down collection instead of exhausting memory. A single
+ * sender thread takes batches of samples from the queue, regardless of which job produced them, and sends them as
+ * snappy compressed protobuf messages, retrying failed requests with exponential backoff.
+ */
+final class RemoteWritePusher implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(RemoteWritePusher.class.getName());
+
+    private static final Duration INITIAL_BACKOFF = Duration.ofMillis(100);
+    private static final Duration MAX_BACKOFF = Duration.ofSeconds(10);
+
+    private final CollectorRegistry registry;
+    private final URI endpoint;
+    private final Duration interval;
+    private final int batchSize;
+    private final int maxRetries;
+    private final Duration timeout;
+    private final Clock clock;
+    private final Jitter jitter;
+
+    private final BlockingQueue<RemoteWriteEncoder.Series> queue;
+    private final HttpClient client;
+    private final ScheduledExecutorService collector;
+    private final Thread sender;
+
+    private final Gauge queueDepth;
+    private final Histogram batchSizes;
+    private final Histogram sendDuration;
+    private final Counter samplesSent;
+    private final Counter samplesDropped;
+    private final Counter sendFailures;
+
+    private volatile boolean running = true;
+
+    RemoteWritePusher(String metricPrefix, CollectorRegistry registry, ExporterSettings settings, Clock clock) {
+        this.registry = requireNonNull(registry);
+        this.endpoint = settings.remoteWriteUrl().orElseThrow(() -> new IllegalArgumentException("no remote write URL"));
+        this.interval = settings.remoteWriteInterval();
+        this.batchSize = settings.remoteWriteBatchSize();
+        this.maxRetries = settings.remoteWriteMaxRetries();
+        this.timeout = settings.remoteWriteTimeout();
+        this.clock = requireNonNull(clock);
+        this.jitter = settings.jitter();
+        this.queue = new ArrayBlockingQueue<>(settings.remoteWriteQueueCapacity());
+        this.client = HttpClient.newBuilder().connectTimeout(timeout).build();
+
+        this.queueDepth = Gauge.build()
+                .name(metricPrefix + "_remote_write_queue_depth")
+                .help("Number of samples waiting to be sent to the remote write endpoint.")
+                .register(registry);
+        this.batchSizes = Histogram.build()
+                .name(metricPrefix + "_remote_write_batch_size")
+                .help("Number of samples per remote write request.")
+                .exponentialBuckets(1, 4, 8)
+                .register(registry);
+        this.sendDuration = Histogram.build()
+                .name(metricPrefix + "_remote_write_send_duration_seconds")
+                .help("Time a remote write request took, in seconds.")
+                .register(registry);
+        this.samplesSent = Counter.build()
+                .name(metricPrefix + "_remote_write_samples_sent_total")
+                .help("Number of samples successfully sent to the remote write endpoint.")
+                .register(registry);
+        this.samplesDropped = Counter.build()
+                .name(metricPrefix + "_remote_write_samples_dropped_total")
+                .help("Number of samples that have been dropped because the queue was full or sending failed.")
+                .register(registry);
+        this.sendFailures = Counter.build()
+                .name(metricPrefix + "_remote_write_send_failures_total")
+                .help("Number of failed remote write requests, including retried ones.")
+                .register(registry);
+
+        this.collector = Executors.newSingleThreadScheduledExecutor(r -> {
+            final var thread = new Thread(r, "remote-write-collector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sender = new Thread(this::sendLoop, "remote-write-sender");
+        this.sender.setDaemon(true);
+    }
+
+    void start() {
+        LOGGER.info(String.format("Pushing metrics to %s every %s", endpoint, interval));
+        sender.start();
+        final var now = clock.instant();
+        final var initialDelay = Duration.between(now, jitter.next(endpoint.toString(), now, interval));
+        collector.scheduleAtFixedRate(
+            this::collectOnce,
+            initialDelay.toMillis(),
+            interval.toMillis(),
+            TimeUnit.MILLISECONDS);
+    }
+
+    void collectOnce() {
+        try {
+            final var series = RemoteWriteEncoder.toSeries(
+                Collections.list(registry.metricFamilySamples()),
+                clock.millis());
+            final var deadline = System.nanoTime() + interval.toNanos();
+            var dropped = 0;
+            for (final var s : series) {
+                if (!queue.offer(s, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    dropped++;
+                }
+            }
+            if (dropped > 0) {
+                LOGGER.warning(String.format("Remote write queue is full, dropped %d samples", dropped));
+                samplesDropped.inc(dropped);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Failed to collect metrics for remote write", e);
+        } finally {
+            queueDepth.set(queue.size());
+        }
+    }
+
+    private void sendLoop() {
+        final var batch = new ArrayList<RemoteWriteEncoder.Series>(batchSize);
+        while (running) {
+            try {
+                final var first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                queueDepth.set(queue.size());
+                send(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    void send(List<RemoteWriteEncoder.Series> batch) throws InterruptedException {
+        batchSizes.observe(batch.size());
+
+        final byte[] body;
+        try {
+            body = Snappy.compress(RemoteWriteEncoder.encode(batch));
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to compress remote write request", e);
+            samplesDropped.inc(batch.size());
+            return;
+        }
+
+        final var request = HttpRequest.newBuilder(endpoint)
+            .timeout(timeout)
+            .header("Content-Encoding", "snappy")
+            .header("Content-Type", "application/x-protobuf")
+            .header("User-Agent", "prometheus-jdbc-exporter")
+            .header("X-Prometheus-Remote-Write-Version", "0.1.0")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+            .build();
+
+        var backoff = INITIAL_BACKOFF;
+        for (int attempt = 0;; attempt++) {
+            final var timer = sendDuration.startTimer();
+            String failure;
+            var retryable = true;
+            try {
+                final var response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                final var status = response.statusCode();
+                if (status / 100 == 2) {
+                    samplesSent.inc(batch.size());
+                    return;
+                }
+                // As per the remote write spec, only server errors and throttling are to be retried.
+                retryable = status / 100 == 5 || status == 429;
+                failure = String.format("HTTP %d: %s", status, response.body());
+            } catch (IOException e) {
+                failure = e.toString();
+            } finally {
+                timer.observeDuration();
+            }
+
+            sendFailures.inc();
+            if (!retryable || attempt >= maxRetries) {
+                LOGGER.warning(
+                    String.format("Dropping %d samples after %d remote write attempts: %s", batch.size(), attempt + 1, failure));
+                samplesDropped.inc(batch.size());
+                return;
+            }
+
+            LOGGER.fine(String.format("Remote write failed, retrying in %s: %s", backoff, failure));
+            Thread.sleep(backoff.toMillis());
+            backoff = backoff.multipliedBy(2).compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff.multipliedBy(2);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        collector.shutdownNow();
+        sender.interrupt();
+    }
+}
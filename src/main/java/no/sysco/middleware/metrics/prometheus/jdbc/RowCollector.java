@@ -0,0 +1,179 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import io.prometheus.client.Collector;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.MetricPlan;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.QueryTask;
+
+/**
+ * Turns the rows of a query result into the samples of all metrics of the query, regardless of how the query has been
+ * executed.
+ */
+final class RowCollector implements RowConsumer {
+
+    private static final Logger LOGGER = Logger.getLogger(RowCollector.class.getName());
+
+    /** A row of a query result, only valid while it is {@linkplain RowCollector#add(Row) being added}. */
+    interface Row {
+        String getString(String column) throws SQLException;
+
+        double getDouble(String column) throws SQLException;
+
+        int columnCount() throws SQLException;
+
+        /** The value of a column by its index, starting at {@code 1} like in JDBC. */
+        String getString(int column) throws SQLException;
+    }
+
+    private final QueryTask task;
+    private final SampleResult result;
+    private final SampleSink[] sinks;
+    private final long maxRows;
+    /** Number of rows offered to this collector and the ones of all other partitions of the query. */
+    private final AtomicLong offeredRows;
+    private final JfrEvents.CollectSamples event = new JfrEvents.CollectSamples();
+
+    RowCollector(QueryTask task, SampleResult result) {
+        this(task, result, new AtomicLong());
+    }
+
+    private RowCollector(QueryTask task, SampleResult result, AtomicLong offeredRows) {
+        this.task = requireNonNull(task);
+        this.result = requireNonNull(result);
+        this.sinks = new SampleSink[task.metrics.size()];
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i] = task.metrics.get(i).newSink();
+        }
+        this.maxRows = task.query.maxRows().orElse(Integer.MAX_VALUE);
+        this.offeredRows = offeredRows;
+        event.begin();
+    }
+
+    /**
+     * Creates a collector for the rows of a partition of the query, to be {@linkplain #addAll(RowCollector) added} to
+     * this one afterwards. Partitions share the maximum number of rows of the query.
+     */
+    RowCollector partition(SampleResult partitionResult) {
+        return new RowCollector(task, partitionResult, offeredRows);
+    }
+
+    static Row rowOf(ResultSet rs) {
+        return new Row() {
+            @Override
+            public String getString(String column) throws SQLException {
+                return rs.getString(column);
+            }
+
+            @Override
+            public double getDouble(String column) throws SQLException {
+                return rs.getDouble(column);
+            }
+
+            @Override
+            public int columnCount() throws SQLException {
+                return rs.getMetaData().getColumnCount();
+            }
+
+            @Override
+            public String getString(int column) throws SQLException {
+                return rs.getString(column);
+            }
+        };
+    }
+
+    /**
+     * Adds the samples of a row to all metrics.
+     *
+     * @return {@code false} if the row has been ignored because the query returned more rows than allowed, i.e. the
+     *         remaining rows can be skipped
+     */
+    @Override
+    public synchronized boolean add(Row row) {
+        final var offered = offeredRows.getAndIncrement();
+        if (offered >= maxRows) {
+            if (offered == maxRows) {
+                LOGGER.warning(
+                    String.format(
+                        "Query %s returned more than %d rows, ignoring the remaining ones.",
+                        task.query.name(),
+                        maxRows));
+            }
+            return false;
+        }
+
+        for (int i = 0; i < sinks.length; i++) {
+            addRow(task.metrics.get(i), sinks[i], row);
+        }
+        result.rows++;
+        return true;
+    }
+
+    /** Adds the rows that have been added to the collector of a partition. */
+    synchronized void addAll(RowCollector partition) {
+        synchronized (partition) {
+            for (int i = 0; i < sinks.length; i++) {
+                sinks[i].addAll(partition.sinks[i]);
+            }
+            result.rows += partition.result.rows;
+        }
+    }
+
+    /** Puts the samples of all rows added so far into the result. */
+    synchronized void finish() {
+        final var samples = new ArrayList<Collector.MetricFamilySamples>();
+        for (final var sink : sinks) {
+            samples.addAll(sink.build());
+        }
+        result.samples = samples;
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.query = task.query.name();
+            event.rows = result.rows;
+            event.commit();
+        }
+    }
+
+    private static void addRow(MetricPlan metric, SampleSink sink, Row row) {
+        final var staticLabelValues = metric.staticLabelValues;
+        final var resultLabelNames = metric.resultLabelNames;
+
+        // with room for the target labels of relabel rules
+        final var labelValues = new String[metric.relabeler.width];
+        System.arraycopy(staticLabelValues, 0, labelValues, 0, staticLabelValues.length);
+        for (int i = 0; i < resultLabelNames.length; i++) {
+            var labelValue = "";
+            try {
+                labelValue = row.getString(resultLabelNames[i]);
+            } catch (SQLException e) {
+                LOGGER.log(
+                    Level.WARNING,
+                    String.format("Label %s not found as part of the query result set.", resultLabelNames[i]));
+            }
+            labelValues[staticLabelValues.length + i] = labelValue;
+        }
+
+        final var relabeled = metric.relabeler.apply(labelValues);
+        if (relabeled == null) {
+            return;
+        }
+
+        try {
+            sink.add(Arrays.asList(relabeled), row.getDouble(metric.valueColumn));
+        } catch (SQLException e) {
+            LOGGER.log(
+                Level.SEVERE,
+                String.format("Sample value %s not found as part of the query result set.", metric.valueColumn),
+                e);
+        }
+    }
+}
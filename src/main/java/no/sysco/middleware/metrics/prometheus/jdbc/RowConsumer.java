@@ -0,0 +1,12 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+/** Receives the rows of a query result one at a time, e.g. to turn them into samples. */
+interface RowConsumer {
+
+    /**
+     * @param row
+     *            the current row, only valid during this call
+     * @return {@code false} if the remaining rows can be skipped
+     */
+    boolean add(RowCollector.Row row);
+}
@@ -0,0 +1,174 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import no.sysco.middleware.metrics.prometheus.jdbc.ExecutionPlan.MetricPlan;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Aggregation;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.AggregationOp;
+
+/**
+ * Combines the samples of metrics from all connections of a job into the metrics of their
+ * {@linkplain Aggregation aggregations}. Each sample is folded into a running aggregate per group as the samples are
+ * passed through, so that only one small accumulator per group is kept, no matter how many connections there are.
+ */
+final class SampleAggregator {
+
+    /** Aggregations by the name of the metric whose samples they combine. */
+    private final Map<String, List<AggregationPlan>> aggregations = new HashMap<>();
+    /** Names of the metrics whose samples are only exposed as aggregations. */
+    private final Set<String> aggregateOnly = new HashSet<>();
+    private final int size;
+
+    /**
+     * @throws IllegalArgumentException
+     *             if an aggregation refers to a label the metric doesn't have
+     */
+    SampleAggregator(String prefix, List<MetricPlan> metrics) {
+        var size = 0;
+        for (final var metric : metrics) {
+            if (metric.metricDef.aggregations().isEmpty() || aggregations.containsKey(metric.name)) {
+                continue;
+            }
+            final var plans = new ArrayList<AggregationPlan>();
+            for (final var aggregation : metric.metricDef.aggregations()) {
+                plans.add(new AggregationPlan(size++, prefix, metric, aggregation));
+            }
+            aggregations.put(metric.name, plans);
+            if (metric.metricDef.aggregateOnly()) {
+                aggregateOnly.add(metric.name);
+            }
+        }
+        this.size = size;
+    }
+
+    /**
+     * Aggregates the samples of all metrics that have aggregations.
+     *
+     * @return the given metric families, except for the ones that are only exposed as aggregations, followed by the
+     *         aggregations
+     */
+    List<Collector.MetricFamilySamples> apply(List<Collector.MetricFamilySamples> families) {
+        if (size == 0) {
+            return families;
+        }
+
+        final var result = new ArrayList<Collector.MetricFamilySamples>(families.size() + size);
+        final var plans = new AggregationPlan[size];
+        final var groups = new ArrayList<Map<List<String>, Accumulator>>(Collections.nCopies(size, null));
+        for (final var family : families) {
+            final var familyPlans = aggregations.get(family.name);
+            if (familyPlans == null) {
+                result.add(family);
+                continue;
+            }
+            if (!aggregateOnly.contains(family.name)) {
+                result.add(family);
+            }
+            for (final var plan : familyPlans) {
+                if (groups.get(plan.index) == null) {
+                    plans[plan.index] = plan;
+                    groups.set(plan.index, new LinkedHashMap<>());
+                }
+                for (final var sample : family.samples) {
+                    plan.add(groups.get(plan.index), sample);
+                }
+            }
+        }
+
+        for (int i = 0; i < size; i++) {
+            if (plans[i] != null) {
+                result.add(plans[i].build(groups.get(i)));
+            }
+        }
+        return result;
+    }
+
+    private static final class AggregationPlan {
+        final int index;
+        final String name;
+        final String help;
+        final AggregationOp op;
+        final List<String> labelNames;
+        /** Index of each label aggregated by in the labels of the metric's samples. */
+        final int[] labelIndexes;
+
+        AggregationPlan(int index, String prefix, MetricPlan metric, Aggregation aggregation) {
+            this.index = index;
+            this.name = prefix + '_' + metric.metricDef.aggregationName(aggregation);
+            this.op = requireNonNull(aggregation.op());
+            this.labelNames = List.copyOf(aggregation.by());
+            this.help = String.format(
+                "%s of %s by (%s) across connections",
+                op.name().toLowerCase(Locale.ROOT),
+                metric.help,
+                String.join(", ", labelNames));
+            this.labelIndexes = new int[labelNames.size()];
+            for (int i = 0; i < labelIndexes.length; i++) {
+                labelIndexes[i] = metric.labelNames.indexOf(labelNames.get(i));
+                if (labelIndexes[i] < 0) {
+                    throw new IllegalArgumentException(
+                        String.format("can't aggregate %s by %s, it has no such label", metric.name, labelNames.get(i)));
+                }
+            }
+        }
+
+        void add(Map<List<String>, Accumulator> groups, Sample sample) {
+            final var labelValues = new String[labelIndexes.length];
+            for (int i = 0; i < labelIndexes.length; i++) {
+                labelValues[i] = sample.labelValues.get(labelIndexes[i]);
+            }
+            groups.computeIfAbsent(Arrays.asList(labelValues), key -> new Accumulator()).add(sample.value);
+        }
+
+        Collector.MetricFamilySamples build(Map<List<String>, Accumulator> groups) {
+            final var samples = new ArrayList<Sample>(groups.size());
+            groups.forEach((labelValues, accumulator) -> {
+                samples.add(new Sample(name, labelNames, labelValues, accumulator.value(op)));
+            });
+            return new Collector.MetricFamilySamples(name, Collector.Type.GAUGE, help, samples);
+        }
+    }
+
+    private static final class Accumulator {
+        long count;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        double value(AggregationOp op) {
+            switch (op) {
+                case SUM:
+                    return sum;
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case AVG:
+                    return sum / count;
+                case COUNT:
+                default:
+                    return count;
+            }
+        }
+    }
+}
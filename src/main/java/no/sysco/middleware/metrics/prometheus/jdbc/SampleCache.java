@@ -0,0 +1,159 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+/**
+ * Holds the results of cached queries of all configuration files, up to a total weight, i.e. number of samples.
+ *
+ * <p>
+ * Each entry expires at the time its query is due to be refreshed. Expired entries are removed when they are accessed
+ * and whenever something is put into the cache, so that results of queries that aren't run anymore don't linger. When
+ * the total weight exceeds the limit, the least recently used entries are evicted. Results that are heavier than the
+ * limit on their own are not cached at all.
+ */
+final class SampleCache {
+
+    private final long maxWeight;
+
+    /** Entries in access order, guarded by {@code this}. */
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long weight;
+
+    private final Gauge weightGauge;
+    private final Gauge entriesGauge;
+    private final Counter evictions;
+
+    SampleCache(String metricPrefix, ExporterSettings settings, CollectorRegistry registry) {
+        this.maxWeight = settings.cacheMaxSamples();
+
+        this.weightGauge = Gauge.build()
+                .name(metricPrefix + "_cache_weight_samples")
+                .help("Number of samples of all cached query results.")
+                .register(registry);
+        this.entriesGauge = Gauge.build()
+                .name(metricPrefix + "_cache_entries")
+                .help("Number of cached query results.")
+                .register(registry);
+        this.evictions = Counter.build()
+                .name(metricPrefix + "_cache_evictions_total")
+                .help("Number of query results removed from the cache, or not cached at all, before being refreshed.")
+                .labelNames("reason")
+                .register(registry);
+    }
+
+    /**
+     * Looks up a result that hasn't expired yet.
+     *
+     * @param key
+     *            identifies the query
+     * @param now
+     *            the current time
+     */
+    synchronized Optional<SampleResult> get(Object key, Instant now) {
+        final var entry = entries.get(requireNonNull(key));
+        if (entry == null) {
+            return Optional.empty();
+        }
+        if (!entry.expiresAt.isAfter(now)) {
+            remove(key, entry, "expired");
+            return Optional.empty();
+        }
+        return Optional.of(entry.result);
+    }
+
+    /**
+     * Caches a result, replacing the previous one of the same query.
+     *
+     * @param key
+     *            identifies the query
+     * @param result
+     *            the result with samples in their {@linkplain ColumnarSamples compact} representation
+     * @param expiresAt
+     *            when the query is due to be refreshed
+     * @param now
+     *            the current time
+     */
+    synchronized void put(Object key, SampleResult result, Instant expiresAt, Instant now) {
+        final var previous = entries.remove(requireNonNull(key));
+        if (previous != null) {
+            weight -= previous.weight;
+        }
+
+        expire(now);
+        final var entry = new Entry(result, expiresAt);
+        if (entry.weight > maxWeight) {
+            evictions.labels("too_large").inc();
+        } else {
+            entries.put(key, entry);
+            weight += entry.weight;
+            for (final var it = entries.entrySet().iterator(); weight > maxWeight && it.hasNext();) {
+                final var eldest = it.next();
+                it.remove();
+                weight -= eldest.getValue().weight;
+                evictions.labels("size").inc();
+            }
+        }
+        updateGauges();
+    }
+
+    /** Removes all expired entries. */
+    synchronized void expire(Instant now) {
+        for (final var it = entries.values().iterator(); it.hasNext();) {
+            final var entry = it.next();
+            if (!entry.expiresAt.isAfter(now)) {
+                it.remove();
+                weight -= entry.weight;
+                evictions.labels("expired").inc();
+            }
+        }
+        updateGauges();
+    }
+
+    synchronized long weight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(Object key, Entry entry, String reason) {
+        entries.remove(key);
+        weight -= entry.weight;
+        evictions.labels(reason).inc();
+        updateGauges();
+    }
+
+    private void updateGauges() {
+        weightGauge.set(weight);
+        entriesGauge.set(entries.size());
+    }
+
+    private static long weightOf(SampleResult result) {
+        if (result.samples instanceof ColumnarSamples) {
+            return ((ColumnarSamples) result.samples).sampleCount();
+        }
+        return result.samples.stream().mapToLong(family -> family.samples.size()).sum();
+    }
+
+    private static final class Entry {
+        final SampleResult result;
+        final Instant expiresAt;
+        final long weight;
+
+        Entry(SampleResult result, Instant expiresAt) {
+            this.result = requireNonNull(result);
+            this.expiresAt = requireNonNull(expiresAt);
+            // even results without samples take some memory
+            this.weight = Math.max(1, weightOf(result));
+        }
+    }
+}
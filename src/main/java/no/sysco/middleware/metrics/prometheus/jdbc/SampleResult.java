@@ -0,0 +1,41 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import io.prometheus.client.Collector;
+
+/** The samples of a query or job, and how they have been obtained. */
+class SampleResult {
+    final Instant sampleTime;
+    Duration scrapeDuration = Duration.ZERO;
+    long rows;
+    /** Whether queries have been cancelled or skipped because the scrape deadline was exceeded. */
+    boolean timedOut;
+    Optional<Throwable> error = Optional.empty();
+    List<Collector.MetricFamilySamples> samples = new ArrayList<>();
+    /** Token of the result of the query's change probe, run right before the query, if any. */
+    Optional<String> changeToken = Optional.empty();
+
+    SampleResult(Clock clock) {
+        this(clock.instant());
+    }
+
+    SampleResult(Instant sampleTime) {
+        this.sampleTime = sampleTime;
+    }
+
+    /** The same samples, as of a later time, as the change probe has shown they're still current. */
+    SampleResult renewed(Instant sampleTime) {
+        final var result = new SampleResult(sampleTime);
+        result.scrapeDuration = scrapeDuration;
+        result.rows = rows;
+        result.samples = samples;
+        result.changeToken = changeToken;
+        return result;
+    }
+}
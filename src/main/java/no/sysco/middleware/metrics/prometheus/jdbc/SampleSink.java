@@ -0,0 +1,234 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.MetricOptions;
+
+/**
+ * Receives the label values and the sample value of each row of a query result, one row at a time, and turns them
+ * into metric family samples once the result set has been consumed.
+ */
+interface SampleSink {
+
+    /** The default histogram buckets, same as the ones of the Prometheus client libraries. */
+    static final List<Double> DEFAULT_BUCKETS = List.of(.005, .01, .025, .05, .1, .25, .5, 1d, 2.5, 5d, 10d);
+
+    static SampleSink of(String metricName, List<String> labelNames, String help, MetricOptions metricDef) {
+        switch (metricDef.type()) {
+            case HISTOGRAM:
+                return new HistogramSink(
+                    metricName,
+                    labelNames,
+                    help,
+                    metricDef.buckets().isEmpty() ? DEFAULT_BUCKETS : metricDef.buckets());
+            case SUMMARY:
+                return new SummarySink(metricName, labelNames, help, metricDef.quantiles());
+            case GAUGE:
+            default:
+                return new GaugeSink(metricName, labelNames, help);
+        }
+    }
+
+    /**
+     * Adds a single row.
+     *
+     * @param labelValues
+     *            the label values of the row, in the same order as the label names given to this sink
+     * @param value
+     *            the value of the row
+     */
+    void add(List<String> labelValues, double value);
+
+    /** Adds all rows that have been added to another sink of the same metric, e.g. of another partition. */
+    void addAll(SampleSink other);
+
+    /** Builds the metric family samples from all rows added so far. */
+    List<Collector.MetricFamilySamples> build();
+}
+
+/** Exposes each row as a sample of its own. */
+final class GaugeSink implements SampleSink {
+    private final String metricName;
+    private final List<String> labelNames;
+    private final String help;
+    private final List<Sample> samples = new ArrayList<>();
+
+    GaugeSink(String metricName, List<String> labelNames, String help) {
+        this.metricName = requireNonNull(metricName);
+        this.labelNames = List.copyOf(labelNames);
+        this.help = requireNonNull(help);
+    }
+
+    @Override
+    public void add(List<String> labelValues, double value) {
+        samples.add(new Sample(metricName, labelNames, labelValues, value));
+    }
+
+    @Override
+    public void addAll(SampleSink other) {
+        samples.addAll(((GaugeSink) other).samples);
+    }
+
+    @Override
+    public List<Collector.MetricFamilySamples> build() {
+        return List.of(new Collector.MetricFamilySamples(metricName, Collector.Type.GAUGE, help, samples));
+    }
+}
+
+/** Aggregates the rows into cumulative histogram buckets per label set. */
+final class HistogramSink implements SampleSink {
+    private final String metricName;
+    private final List<String> labelNames;
+    private final String help;
+    private final double[] upperBounds;
+    private final Map<List<String>, Distribution> distributions = new LinkedHashMap<>();
+
+    private static final class Distribution {
+        final long[] counts;
+        double sum;
+
+        Distribution(int buckets) {
+            counts = new long[buckets];
+        }
+    }
+
+    HistogramSink(String metricName, List<String> labelNames, String help, List<Double> buckets) {
+        this.metricName = requireNonNull(metricName);
+        this.labelNames = List.copyOf(labelNames);
+        this.help = requireNonNull(help);
+        this.upperBounds = buckets.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    @Override
+    public void add(List<String> labelValues, double value) {
+        final var distribution = distributions.computeIfAbsent(labelValues, k -> new Distribution(upperBounds.length + 1));
+        // index of the first bucket whose upper bound is >= value; the last one is the implicit +Inf bucket
+        var bucket = Arrays.binarySearch(upperBounds, value);
+        if (bucket < 0) {
+            bucket = -bucket - 1;
+        }
+        distribution.counts[bucket]++;
+        distribution.sum += value;
+    }
+
+    @Override
+    public void addAll(SampleSink other) {
+        ((HistogramSink) other).distributions.forEach((labelValues, added) -> {
+            final var distribution = distributions.computeIfAbsent(labelValues, k -> new Distribution(upperBounds.length + 1));
+            for (int i = 0; i < distribution.counts.length; i++) {
+                distribution.counts[i] += added.counts[i];
+            }
+            distribution.sum += added.sum;
+        });
+    }
+
+    @Override
+    public List<Collector.MetricFamilySamples> build() {
+        final var bucketLabelNames = new ArrayList<String>(labelNames.size() + 1);
+        bucketLabelNames.addAll(labelNames);
+        bucketLabelNames.add("le");
+
+        final var samples = new ArrayList<Sample>(distributions.size() * (upperBounds.length + 3));
+        distributions.forEach((labelValues, distribution) -> {
+            long cumulativeCount = 0;
+            for (int i = 0; i <= upperBounds.length; i++) {
+                cumulativeCount += distribution.counts[i];
+                final var le = i < upperBounds.length
+                    ? Collector.doubleToGoString(upperBounds[i])
+                    : Collector.doubleToGoString(Double.POSITIVE_INFINITY);
+                final var bucketLabelValues = new ArrayList<String>(labelValues.size() + 1);
+                bucketLabelValues.addAll(labelValues);
+                bucketLabelValues.add(le);
+                samples.add(new Sample(metricName + "_bucket", bucketLabelNames, bucketLabelValues, cumulativeCount));
+            }
+            samples.add(new Sample(metricName + "_count", labelNames, labelValues, cumulativeCount));
+            samples.add(new Sample(metricName + "_sum", labelNames, labelValues, distribution.sum));
+        });
+
+        return List.of(new Collector.MetricFamilySamples(metricName, Collector.Type.HISTOGRAM, help, samples));
+    }
+}
+
+/** Aggregates the rows into count, sum and exact quantiles per label set. */
+final class SummarySink implements SampleSink {
+    private final String metricName;
+    private final List<String> labelNames;
+    private final String help;
+    private final double[] quantiles;
+    private final Map<List<String>, Distribution> distributions = new LinkedHashMap<>();
+
+    private static final class Distribution {
+        double[] values = new double[16];
+        int count;
+        double sum;
+
+        void add(double value) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = value;
+            sum += value;
+        }
+    }
+
+    SummarySink(String metricName, List<String> labelNames, String help, List<Double> quantiles) {
+        this.metricName = requireNonNull(metricName);
+        this.labelNames = List.copyOf(labelNames);
+        this.help = requireNonNull(help);
+        this.quantiles = quantiles.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    @Override
+    public void add(List<String> labelValues, double value) {
+        distributions.computeIfAbsent(labelValues, k -> new Distribution()).add(value);
+    }
+
+    @Override
+    public void addAll(SampleSink other) {
+        ((SummarySink) other).distributions.forEach((labelValues, added) -> {
+            final var distribution = distributions.computeIfAbsent(labelValues, k -> new Distribution());
+            for (int i = 0; i < added.count; i++) {
+                distribution.add(added.values[i]);
+            }
+        });
+    }
+
+    @Override
+    public List<Collector.MetricFamilySamples> build() {
+        final var quantileLabelNames = new ArrayList<String>(labelNames.size() + 1);
+        quantileLabelNames.addAll(labelNames);
+        quantileLabelNames.add("quantile");
+
+        final var samples = new ArrayList<Sample>(distributions.size() * (quantiles.length + 2));
+        distributions.forEach((labelValues, distribution) -> {
+            if (quantiles.length > 0) {
+                final var sorted = Arrays.copyOf(distribution.values, distribution.count);
+                Arrays.sort(sorted);
+                for (final var quantile : quantiles) {
+                    final var quantileLabelValues = new ArrayList<String>(labelValues.size() + 1);
+                    quantileLabelValues.addAll(labelValues);
+                    quantileLabelValues.add(Collector.doubleToGoString(quantile));
+                    samples.add(new Sample(metricName, quantileLabelNames, quantileLabelValues, rank(sorted, quantile)));
+                }
+            }
+            samples.add(new Sample(metricName + "_count", labelNames, labelValues, distribution.count));
+            samples.add(new Sample(metricName + "_sum", labelNames, labelValues, distribution.sum));
+        });
+
+        return List.of(new Collector.MetricFamilySamples(metricName, Collector.Type.SUMMARY, help, samples));
+    }
+
+    /** Nearest-rank quantile of a sorted, non-empty array. */
+    private static double rank(double[] sorted, double quantile) {
+        final var index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,119 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Point in time by which a scrape has to be collected, e.g. derived from the scrape timeout Prometheus sends along with
+ * each scrape. Queries still running at the deadline are cancelled, and queries that haven't started yet are skipped,
+ * so that a slow database results in a partial scrape instead of a timed out one.
+ *
+ * <p>
+ * The Prometheus client library doesn't pass anything to collectors, so the deadline of a scrape is made available to
+ * the thread collecting it via {@link #call(Optional, Action)} and {@link #current()}.
+ */
+final class ScrapeDeadline {
+
+    private static final Logger LOGGER = Logger.getLogger(ScrapeDeadline.class.getName());
+
+    /** Header Prometheus sends with each scrape. */
+    static final String TIMEOUT_HEADER = "X-Prometheus-Scrape-Timeout-Seconds";
+
+    private static final ThreadLocal<ScrapeDeadline> CURRENT = new ThreadLocal<>();
+
+    private static final ScheduledExecutorService CANCELLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final var thread = new Thread(r, "scrape-deadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Something done within a deadline. */
+    interface Action<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /** Something to be done at the deadline, e.g. cancelling a statement. */
+    interface Cancellation {
+        void cancel() throws Exception;
+    }
+
+    /** A scheduled {@link Cancellation}, to be closed once it's not needed anymore. */
+    interface Scheduled extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final long nanos;
+
+    private ScrapeDeadline(long nanos) {
+        this.nanos = nanos;
+    }
+
+    static ScrapeDeadline after(Duration timeout) {
+        return new ScrapeDeadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * Determines the deadline of a scrape.
+     *
+     * @param timeoutHeader
+     *            value of the {@linkplain #TIMEOUT_HEADER timeout header}, if any
+     * @param defaultTimeout
+     *            timeout of scrapes without the header
+     * @param offset
+     *            time subtracted from the timeout to leave room for sending the response
+     */
+    static Optional<ScrapeDeadline> of(String timeoutHeader, Optional<Duration> defaultTimeout, Duration offset) {
+        var timeout = defaultTimeout;
+        if (timeoutHeader != null) {
+            try {
+                timeout = Optional.of(Duration.ofMillis((long) (Double.parseDouble(timeoutHeader.trim()) * 1000)));
+            } catch (NumberFormatException e) {
+                LOGGER.fine("Ignoring invalid scrape timeout " + timeoutHeader);
+            }
+        }
+        return timeout.map(t -> t.minus(offset)).map(t -> t.isNegative() ? Duration.ZERO : t).map(ScrapeDeadline::after);
+    }
+
+    /** Runs something with the given deadline being the {@linkplain #current() current} one. */
+    static <T, E extends Exception> T call(Optional<ScrapeDeadline> deadline, Action<T, E> action) throws E {
+        final var previous = CURRENT.get();
+        CURRENT.set(deadline.orElse(null));
+        try {
+            return action.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /** The deadline of the scrape being collected by the current thread, if any. */
+    static Optional<ScrapeDeadline> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    Duration remaining() {
+        final var remaining = nanos - System.nanoTime();
+        return remaining > 0 ? Duration.ofNanos(remaining) : Duration.ZERO;
+    }
+
+    boolean isExpired() {
+        return nanos - System.nanoTime() <= 0;
+    }
+
+    /** Runs a cancellation at the deadline, unless it is closed before. */
+    Scheduled schedule(Cancellation cancellation) {
+        final var future = CANCELLER.schedule(() -> {
+            try {
+                cancellation.cancel();
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Cancellation at scrape deadline failed.", e);
+            }
+        }, remaining().toNanos(), TimeUnit.NANOSECONDS);
+        return () -> future.cancel(false);
+    }
+}
@@ -0,0 +1,100 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Config;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConfig;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.Job;
+
+/**
+ * Selects the slice of jobs and connections that one of several exporter replicas sharing the same configuration is
+ * responsible for.
+ *
+ * <p>
+ * Each pair of job name and connection URL is assigned to a replica by rendezvous hashing: every replica computes a
+ * score for the pair, and the replica with the highest score owns it. All replicas agree on the owner without any
+ * coordination, and when the number of replicas changes, only the pairs that are moving to or from the added or
+ * removed replicas change their owner.
+ */
+final class ShardSelector {
+
+    private final int index;
+    private final int count;
+
+    ShardSelector(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new IllegalArgumentException(String.format("invalid shard %d of %d", index, count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Returns the part of the given configuration that this replica owns, or nothing if it doesn't own any of its
+     * connections. Modules aren't sharded, since their targets are distributed by whoever sends the probes.
+     */
+    Optional<Config> select(Config config) {
+        if (count == 1) {
+            return Optional.of(config);
+        }
+
+        final var jobs = new ArrayList<Job>();
+        for (final var job : config.jobs()) {
+            final var connections = job.connections().stream().filter(conn -> owns(job, conn)).collect(toList());
+            if (!connections.isEmpty()) {
+                jobs.add(ImmutableJob.builder().from(job).connections(connections).build());
+            }
+        }
+
+        if (jobs.isEmpty() && config.modules().isEmpty()) {
+            return Optional.empty();
+        }
+
+        return Optional.of(ImmutableConfig.builder().from(config).jobs(jobs).build());
+    }
+
+    boolean owns(Job job, ConnectionDef connection) {
+        return ownerOf(job.name() + '\0' + connection.url()) == index;
+    }
+
+    int ownerOf(String key) {
+        final var keyHash = fnv1a64(key);
+        var owner = 0;
+        var maxScore = Long.MIN_VALUE;
+        for (int replica = 0; replica < count; replica++) {
+            final var score = mix64(keyHash ^ mix64(replica + 1));
+            if (score > maxScore) {
+                maxScore = score;
+                owner = replica;
+            }
+        }
+        return owner;
+    }
+
+    static long fnv1a64(String key) {
+        var hash = 0xcbf29ce484222325L;
+        for (final var b : key.getBytes(UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /** The finalizer of SplitMix64. */
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("shard %d of %d", index, count);
+    }
+}
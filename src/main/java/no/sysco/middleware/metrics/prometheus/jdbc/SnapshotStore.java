@@ -0,0 +1,53 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import java.util.Optional;
+import java.util.Set;
+
+/** Persists the results of cached queries, so that they can be served again after a restart. */
+interface SnapshotStore {
+
+    /** A snapshot store that doesn't persist anything. */
+    static SnapshotStore NONE = new SnapshotStore() {
+        @Override
+        public Optional<SampleResult> restore(String key) {
+            return Optional.empty();
+        }
+
+        @Override
+        public void save(String key, SampleResult result) {
+            // nothing to do
+        }
+
+        @Override
+        public void retain(Set<String> keys) {
+            // nothing to do
+        }
+
+        @Override
+        public String toString() {
+            return "SnapshotStore.NONE";
+        }
+    };
+
+    /**
+     * Returns the result that has been persisted for the given key before this exporter has been started, if any. A
+     * restored result is handed out only once, any later call for the same key returns an empty result.
+     */
+    Optional<SampleResult> restore(String key);
+
+    /**
+     * Persists the given result. Implementations may do so asynchronously.
+     *
+     * @param key
+     *            a key that identifies the query across restarts
+     * @param result
+     *            the result to persist
+     */
+    void save(String key, SampleResult result);
+
+    /**
+     * Discards the results of all keys but the given ones, e.g. of queries that have been removed from the
+     * configuration, or that are run by another shard now.
+     */
+    void retain(Set<String> keys);
+}
@@ -0,0 +1,207 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.Closeable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a small pool of idle connections per probed target, so that probing the same targets over and over doesn't
+ * connect to them again on every scrape.
+ *
+ * <p>
+ * Pools are kept for at most {@code maxTargets} distinct connection URLs and properties, the least recently used one
+ * is evicted when another target is probed. Pools that haven't been used for longer than the idle timeout are evicted
+ * as well. Connections handed out are returned to their pool when closed, idle connections are validated before they
+ * are handed out again.
+ */
+final class TargetConnectionPools implements ConnectionProvider, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(TargetConnectionPools.class.getName());
+
+    /** Seconds to wait for an idle connection to be validated. */
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    private final ConnectionProvider delegate;
+    private final int maxTargets;
+    private final int maxIdlePerTarget;
+    private final Duration idleTimeout;
+    private final Clock clock;
+
+    /** Pools by target, in access order, guarded by {@code this}. */
+    private final LinkedHashMap<List<Object>, Pool> pools = new LinkedHashMap<>(16, 0.75f, true);
+
+    TargetConnectionPools(
+        ConnectionProvider delegate,
+        int maxTargets,
+        int maxIdlePerTarget,
+        Duration idleTimeout,
+        Clock clock)
+    {
+        if (maxTargets < 1 || maxIdlePerTarget < 0) {
+            throw new IllegalArgumentException(
+                String.format("invalid pool limits: %d targets, %d idle connections", maxTargets, maxIdlePerTarget));
+        }
+        this.delegate = requireNonNull(delegate);
+        this.maxTargets = maxTargets;
+        this.maxIdlePerTarget = maxIdlePerTarget;
+        this.idleTimeout = requireNonNull(idleTimeout);
+        this.clock = requireNonNull(clock);
+    }
+
+    @Override
+    public Connection getConnection(String url, Map<String, String> props) throws SQLException {
+        final var key = List.<Object>of(requireNonNull(url), Map.copyOf(props));
+        while (true) {
+            final Pool pool;
+            final Connection idle;
+            final var evicted = new ArrayList<Connection>();
+            synchronized (this) {
+                final var now = clock.instant();
+                evictExpired(now, evicted);
+                pool = pools.computeIfAbsent(key, k -> new Pool());
+                pool.lastUsed = now;
+                idle = pool.idle.pollFirst();
+                evictLeastRecentlyUsed(evicted);
+            }
+            evicted.forEach(TargetConnectionPools::closeQuietly);
+
+            if (idle == null) {
+                return pooled(pool, delegate.getConnection(url, props));
+            }
+            if (isValid(idle)) {
+                return pooled(pool, idle);
+            }
+            LOGGER.fine("Discarding invalid idle connection to " + ConnectionUrls.redact(url));
+            closeQuietly(idle);
+        }
+    }
+
+    /** Number of targets that currently have a pool. */
+    synchronized int targetCount() {
+        return pools.size();
+    }
+
+    /** Number of idle connections in all pools. */
+    synchronized int idleCount() {
+        return pools.values().stream().mapToInt(pool -> pool.idle.size()).sum();
+    }
+
+    @Override
+    public void close() {
+        final var evicted = new ArrayList<Connection>();
+        synchronized (this) {
+            pools.values().forEach(pool -> evict(pool, evicted));
+            pools.clear();
+        }
+        evicted.forEach(TargetConnectionPools::closeQuietly);
+    }
+
+    private void evictExpired(Instant now, List<Connection> evicted) {
+        for (final var it = pools.values().iterator(); it.hasNext();) {
+            final var pool = it.next();
+            if (pool.lastUsed.plus(idleTimeout).isBefore(now)) {
+                it.remove();
+                evict(pool, evicted);
+            }
+        }
+    }
+
+    private void evictLeastRecentlyUsed(List<Connection> evicted) {
+        for (final var it = pools.values().iterator(); pools.size() > maxTargets && it.hasNext();) {
+            final var pool = it.next();
+            it.remove();
+            evict(pool, evicted);
+        }
+    }
+
+    private static void evict(Pool pool, List<Connection> evicted) {
+        pool.evicted = true;
+        evicted.addAll(pool.idle);
+        pool.idle.clear();
+    }
+
+    private void release(Pool pool, Connection conn) {
+        synchronized (this) {
+            if (!pool.evicted && pool.idle.size() < maxIdlePerTarget) {
+                pool.idle.addFirst(conn);
+                pool.lastUsed = clock.instant();
+                return;
+            }
+        }
+        closeQuietly(conn);
+    }
+
+    /** Wraps a connection so that closing it returns it to its pool. */
+    private Connection pooled(Pool pool, Connection conn) {
+        final var closed = new AtomicBoolean();
+        final InvocationHandler handler = (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(false, true)) {
+                        release(pool, conn);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() || conn.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + conn;
+                default:
+                    if (closed.get()) {
+                        throw new SQLException("Connection has been closed");
+                    }
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(
+            Connection.class.getClassLoader(),
+            new Class<?>[] { Connection.class },
+            handler);
+    }
+
+    private static boolean isValid(Connection conn) {
+        try {
+            return conn.isValid(VALIDATION_TIMEOUT);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            LOGGER.log(Level.FINE, "Error closing pooled connection.", e);
+        }
+    }
+
+    private static final class Pool {
+        final Deque<Connection> idle = new ArrayDeque<>();
+        Instant lastUsed;
+        boolean evicted;
+    }
+}
@@ -1,5 +1,10 @@
 package no.sysco.middleware.metrics.prometheus.jdbc;
 
+import java.util.Map;
+
 public interface TemplateRenderer {
     String render(String template);
+
+    /** Returns a renderer that additionally provides the given variables to templates. */
+    TemplateRenderer with(Map<String, ?> variables);
 }
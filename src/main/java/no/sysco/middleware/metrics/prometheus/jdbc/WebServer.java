@@ -2,19 +2,32 @@ package no.sysco.middleware.metrics.prometheus.jdbc;
 
 import java.net.InetSocketAddress;
 import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.Arrays;
 import java.util.Optional;
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
-import io.prometheus.client.exporter.MetricsServlet;
+import io.prometheus.client.CollectorRegistry;
 
 public class WebServer {
 
    public static void main(String[] args) throws Exception {
+     if (args.length > 0 && args[0].equals("--profile")) {
+       System.exit(
+           ConfigProfiler.run(
+               Optional.ofNullable(System.getenv("METRIC_PREFIX")).orElse("jdbc"),
+               ExporterSettings.fromEnv(System.getenv()),
+               Arrays.copyOfRange(args, 1, args.length),
+               System.out));
+     }
      if (args.length < 2) {
        System.err.println("Usage: WebServer <[hostname:]port> <yaml configuration file>");
+       System.err.println("       " + ConfigProfiler.USAGE.substring("Usage: ".length()));
        System.exit(1);
      }
 
@@ -31,15 +44,68 @@ public class WebServer {
      }
 
      String prefix = Optional.ofNullable(System.getenv("METRIC_PREFIX")).orElse("jdbc");
+     ExporterSettings settings = ExporterSettings.fromEnv(System.getenv());
+
+     SnapshotStore snapshots = SnapshotStore.NONE;
+     if (settings.snapshotDirectory().isPresent()) {
+       FileSnapshotStore fileSnapshots = new FileSnapshotStore(settings.snapshotDirectory().get());
+       Runtime.getRuntime().addShutdownHook(new Thread(fileSnapshots::close));
+       snapshots = fileSnapshots;
+     }
 
-     new JdbcCollector(prefix, Paths.get(args[1])).register();
+     JdbcCollector collector = new JdbcCollector(prefix, Paths.get(args[1]), settings, snapshots).register();
+     ReadinessServlet readiness = new ReadinessServlet();
+
+     QueuedThreadPool threadPool = new QueuedThreadPool(
+         settings.httpMaxThreads(),
+         settings.httpMinThreads(),
+         (int) settings.httpThreadIdleTimeout().toMillis());
+     threadPool.setName("http");
+     Server server = new Server(threadPool);
+     ServerConnector connector = new ServerConnector(server, settings.httpAcceptors(), settings.httpSelectors());
+     // an unresolved host name is passed on as is, so that startup fails instead of binding to all interfaces
+     connector.setHost(!socket.isUnresolved() && socket.getAddress().isAnyLocalAddress() ? null : socket.getHostString());
+     connector.setPort(socket.getPort());
+     connector.setIdleTimeout(settings.httpIdleTimeout().toMillis());
+     server.addConnector(connector);
 
-     Server server = new Server(socket);
      ServletContextHandler context = new ServletContextHandler();
      context.setContextPath("/");
      server.setHandler(context);
-     context.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+     context.addServlet(
+         new ServletHolder(
+             new AdmissionControlServlet(
+                 prefix,
+                 CollectorRegistry.defaultRegistry,
+                 settings.maxConcurrentScrapes(),
+                 settings.scrapeQueueTimeout(),
+                 settings.serveStaleWhenOverloaded(),
+                 settings.scrapeTimeout(),
+                 settings.scrapeTimeoutOffset())),
+         "/metrics");
+     context.addServlet(new ServletHolder(readiness), "/ready");
+     context.addServlet(
+         new ServletHolder(new ProbeServlet(collector, settings.scrapeTimeout(), settings.scrapeTimeoutOffset())),
+         "/probe");
+     context.addServlet(new ServletHolder(new QueryDebugServlet(collector.statistics())), "/debug/queries");
      server.start();
+
+     warmUp(collector, settings, readiness);
+
+     if (settings.remoteWriteUrl().isPresent()) {
+       RemoteWritePusher pusher = new RemoteWritePusher(prefix, CollectorRegistry.defaultRegistry, settings, Clock.systemUTC());
+       Runtime.getRuntime().addShutdownHook(new Thread(pusher::close));
+       pusher.start();
+     }
+
      server.join();
    }
+
+   /** Warms the collector up, if enabled, and only then reports the exporter as ready. */
+   static void warmUp(JdbcCollector collector, ExporterSettings settings, ReadinessServlet readiness) {
+     if (settings.warmUp()) {
+       collector.warmUp();
+     }
+     readiness.setReady(true);
+   }
 }
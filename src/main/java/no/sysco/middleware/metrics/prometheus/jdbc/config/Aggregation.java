@@ -0,0 +1,36 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Combines the samples of a metric from all connections of a job into a metric of its own, with only the given labels,
+ * like an aggregation operator of PromQL, e.g. {@code sum by (status)}.
+ */
+@ImmutableConfigObject
+@JacksonConfigObject
+@Value.Immutable
+@JsonDeserialize(builder = ImmutableAggregation.Builder.class)
+public interface Aggregation {
+
+    /** How sample values are combined. */
+    AggregationOp op();
+
+    /** Labels to keep, samples with the same values of these labels are combined. May be empty. */
+    List<String> by();
+
+    /** Name of the aggregated metric. Defaults to the name of the metric followed by the operation, e.g. {@code _sum}. */
+    Optional<String> name();
+
+    @Value.Check
+    default void validate() {
+        if (new HashSet<>(by()).size() != by().size()) {
+            throw new IllegalArgumentException("duplicate labels to aggregate by: " + by());
+        }
+    }
+}
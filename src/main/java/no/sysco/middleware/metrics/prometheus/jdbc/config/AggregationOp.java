@@ -0,0 +1,23 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** How the values of the samples of an {@linkplain Aggregation aggregation} are combined, as in PromQL. */
+public enum AggregationOp {
+
+    @JsonProperty("sum")
+    SUM,
+
+    @JsonProperty("min")
+    MIN,
+
+    @JsonProperty("max")
+    MAX,
+
+    @JsonProperty("avg")
+    AVG,
+
+    /** Number of samples, regardless of their values. */
+    @JsonProperty("count")
+    COUNT,
+}
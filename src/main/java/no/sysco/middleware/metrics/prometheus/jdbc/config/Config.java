@@ -5,8 +5,10 @@ import static java.util.stream.Collectors.joining;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Stream;
 
 import org.immutables.value.Value;
 
@@ -42,19 +44,32 @@ public interface Config {
     /** List of jobs that will be executed by the collector. */
     Set<Job> jobs();
 
+    /**
+     * Jobs that are only run on demand for a single target, via the probe endpoint. The variable {@code target} is
+     * available to their templates.
+     */
+    Set<Job> modules();
+
     /** Common queries that can be referenced from different {@linkplain Job jobs}. */
     Map<String, String> queries();
 
     @Value.Check
     default void validate() {
-        if (jobs().isEmpty()) {
+        if (jobs().isEmpty() && modules().isEmpty()) {
             throw new IllegalArgumentException("no jobs provided");
         }
 
-        final var invalidQueryRefs = jobs().stream()
-            .map(Job::queries)
+        final var moduleNames = new HashSet<String>();
+        for (final var module : modules()) {
+            if (!moduleNames.add(module.name())) {
+                throw new IllegalArgumentException("duplicate module: " + module.name());
+            }
+        }
+
+        final var invalidQueryRefs = Stream.concat(jobs().stream(), modules().stream())
+            .map(Job::allQueries)
             .flatMap(Collection::stream)
-            .map(QueryDef::query)
+            .map(QueryOptions::query)
             .filter(QueryString.Ref.class::isInstance)
             .map(QueryString.Ref.class::cast)
             .map(QueryString.Ref::queryRef)
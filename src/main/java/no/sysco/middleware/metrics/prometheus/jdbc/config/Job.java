@@ -1,5 +1,6 @@
 package no.sysco.middleware.metrics.prometheus.jdbc.config;
 
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import org.immutables.value.Value;
@@ -19,15 +20,25 @@ public interface Job {
     /** List of connection details. May not be empty. */
     Set<ConnectionDef> connections();
 
-    /** List of queries to execute. May not be empty. */
+    /** List of queries to execute. May only be empty if there are query groups. */
     Set<QueryDef> queries();
 
+    /** List of queries to execute that collect several metrics each. */
+    Set<QueryGroup> queryGroups();
+
+    /** All queries of this job, including query groups. */
+    default Set<QueryOptions> allQueries() {
+        final var allQueries = new LinkedHashSet<QueryOptions>(queries());
+        allQueries.addAll(queryGroups());
+        return allQueries;
+    }
+
     @Value.Check
     default void validate() {
         if (connections().isEmpty()) {
             throw new IllegalArgumentException("no connections provided");
         }
-        if (queries().isEmpty()) {
+        if (queries().isEmpty() && queryGroups().isEmpty()) {
             throw new IllegalArgumentException("no queries provided");
         }
     }
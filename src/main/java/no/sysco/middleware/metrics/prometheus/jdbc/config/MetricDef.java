@@ -0,0 +1,18 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/** Metric definition, i.e. how the rows of a query result are turned into samples of a metric. */
+@ImmutableConfigObject
+@JacksonConfigObject
+@Value.Immutable
+@JsonDeserialize(builder = ImmutableMetricDef.Builder.class)
+public interface MetricDef extends MetricOptions {
+
+    @Value.Check
+    default void validate() {
+        validateMetric();
+    }
+}
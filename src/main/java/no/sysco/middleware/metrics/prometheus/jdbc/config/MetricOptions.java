@@ -0,0 +1,108 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+import org.immutables.value.Value;
+
+/**
+ * A metric and how the rows of a query result are turned into its samples, shared by {@linkplain MetricDef metric
+ * definitions} and {@linkplain QueryDef query definitions}.
+ */
+public interface MetricOptions {
+
+    /** The metric name. */
+    String name();
+
+    /** The metric's help text. */
+    Optional<String> help();
+
+    /** Static labels to be attached to the metric. */
+    Map<String, String> staticLabels();
+
+    /** List of labels that have to match a column name. Column values must be strings. */
+    List<String> labels();
+
+    /** List of values that have to match a column name. Column values must be numbers. May not be empty. */
+    List<String> values();
+
+    /** How the rows of the result set are exposed. Defaults to {@link MetricType#GAUGE}. */
+    @Value.Default
+    default MetricType type() {
+        return MetricType.GAUGE;
+    }
+
+    /**
+     * Finite upper bounds of the histogram buckets, the {@code +Inf} bucket is implied. Only used for
+     * {@link MetricType#HISTOGRAM}.
+     */
+    List<Double> buckets();
+
+    /** Quantiles to be calculated. Only used for {@link MetricType#SUMMARY}. */
+    List<Double> quantiles();
+
+    /** Rules applied in order to the labels of each row, before it is turned into a sample. */
+    List<RelabelRule> relabelConfigs();
+
+    /** Metrics combining the samples of this metric from all connections of the job. Only used for gauges. */
+    List<Aggregation> aggregations();
+
+    /** Whether only the {@linkplain #aggregations() aggregations} are exposed, not the samples of each connection. */
+    @Value.Default
+    default boolean aggregateOnly() {
+        return false;
+    }
+
+    /** Name of the metric of an aggregation, without prefix. */
+    default String aggregationName(Aggregation aggregation) {
+        return aggregation.name().orElse(name() + '_' + aggregation.op().name().toLowerCase(Locale.ROOT));
+    }
+
+    default void validateMetric() {
+        if (values().isEmpty()) {
+            throw new IllegalArgumentException("no values provided");
+        }
+
+        final var buckets = buckets();
+        // the +Inf bucket is always added
+        if (buckets.stream().anyMatch(bucket -> !Double.isFinite(bucket))) {
+            throw new IllegalArgumentException("buckets must be finite: " + buckets);
+        }
+        for (int i = 1; i < buckets.size(); i++) {
+            if (buckets.get(i - 1) >= buckets.get(i)) {
+                throw new IllegalArgumentException("buckets must be in strictly increasing order: " + buckets);
+            }
+        }
+
+        for (final var quantile : quantiles()) {
+            if (!(quantile >= 0 && quantile <= 1)) {
+                throw new IllegalArgumentException("quantiles must be between 0 and 1: " + quantile);
+            }
+        }
+
+        if (!aggregations().isEmpty() && type() != MetricType.GAUGE) {
+            throw new IllegalArgumentException("aggregations are only supported for gauges: " + name());
+        }
+        if (aggregateOnly() && aggregations().isEmpty()) {
+            throw new IllegalArgumentException("aggregate_only requires aggregations: " + name());
+        }
+        final var aggregationNames = new HashSet<String>();
+        for (final var aggregation : aggregations()) {
+            if (!aggregationNames.add(aggregationName(aggregation))) {
+                throw new IllegalArgumentException("duplicate aggregation of " + name() + ": " + aggregation);
+            }
+        }
+
+        final var reservedLabel = type() == MetricType.HISTOGRAM ? "le" : type() == MetricType.SUMMARY ? "quantile" : null;
+        if (reservedLabel != null
+            && (labels().contains(reservedLabel)
+                || staticLabels().containsKey(reservedLabel)
+                || relabelConfigs().stream().anyMatch(rule -> rule.targetLabel().equals(Optional.of(reservedLabel)))))
+        {
+            throw new IllegalArgumentException("label name is reserved for " + type() + ": " + reservedLabel);
+        }
+    }
+}
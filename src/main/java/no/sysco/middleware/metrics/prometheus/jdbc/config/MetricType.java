@@ -0,0 +1,19 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** How the values of a query's result set are exposed. */
+public enum MetricType {
+
+    /** Each row becomes a sample of its own. */
+    @JsonProperty("gauge")
+    GAUGE,
+
+    /** Rows are aggregated into cumulative buckets per label set. */
+    @JsonProperty("histogram")
+    HISTOGRAM,
+
+    /** Rows are aggregated into count, sum and quantiles per label set. */
+    @JsonProperty("summary")
+    SUMMARY,
+}
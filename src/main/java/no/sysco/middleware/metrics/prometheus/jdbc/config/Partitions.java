@@ -0,0 +1,90 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Splits a query into sub-queries that each select a part of the rows, e.g. of a very large table, and run concurrently
+ * on separate connections. The part is available to the query template as {@code partition}, either one of the
+ * {@linkplain #values() values}, or the index of a bucket of a numeric range, whose bounds are available as
+ * {@code partition_from} (inclusive) and {@code partition_to} (exclusive).
+ */
+@ImmutableConfigObject
+@JacksonConfigObject
+@Value.Immutable
+@JsonDeserialize(builder = ImmutablePartitions.Builder.class)
+public interface Partitions {
+
+    /** Values of the partitions, one sub-query each. */
+    List<String> values();
+
+    /** Start of the range, inclusive. */
+    @JsonProperty("from")
+    Optional<Long> rangeFrom();
+
+    /** End of the range, exclusive. */
+    @JsonProperty("to")
+    Optional<Long> rangeTo();
+
+    /** Number of buckets of about the same size the range is split into, one sub-query each. */
+    Optional<Integer> buckets();
+
+    @Value.Check
+    default void validate() {
+        final var range = rangeFrom().isPresent() || rangeTo().isPresent() || buckets().isPresent();
+        if (values().isEmpty() == !range) {
+            throw new IllegalArgumentException("partitions require either values, or from, to and buckets");
+        }
+        if (!range) {
+            if (new HashSet<>(values()).size() != values().size()) {
+                throw new IllegalArgumentException("duplicate partition values: " + values());
+            }
+            return;
+        }
+        if (rangeFrom().isEmpty() || rangeTo().isEmpty() || buckets().isEmpty()) {
+            throw new IllegalArgumentException("partition ranges require from, to and buckets");
+        }
+        final long from = rangeFrom().get();
+        final long to = rangeTo().get();
+        if (buckets().get() <= 0 || from >= to || to - from < buckets().get()) {
+            throw new IllegalArgumentException(
+                String.format("can't split %d..%d into %d buckets", from, to, buckets().get()));
+        }
+    }
+
+    /** The template variables of each partition. */
+    default List<Map<String, String>> variables() {
+        final var variables = new ArrayList<Map<String, String>>();
+        if (!values().isEmpty()) {
+            values().forEach(value -> variables.add(Map.of("partition", value)));
+            return variables;
+        }
+
+        // numbers are passed as strings, as templates would format them for humans, e.g. with grouping separators
+        final long from = rangeFrom().get();
+        final long size = rangeTo().get() - from;
+        final int buckets = buckets().get();
+        for (int i = 0; i < buckets; i++) {
+            // the first size % buckets buckets are one larger than the others
+            final var lower = from + i * (size / buckets) + Math.min(i, size % buckets);
+            final var upper = from + (i + 1) * (size / buckets) + Math.min(i + 1, size % buckets);
+            variables.add(
+                Map.of(
+                    "partition",
+                    Integer.toString(i),
+                    "partition_from",
+                    Long.toString(lower),
+                    "partition_to",
+                    Long.toString(upper)));
+        }
+        return variables;
+    }
+}
@@ -0,0 +1,34 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.HashSet;
+import java.util.List;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/** A single query whose result is read once and turned into several metrics. */
+@ImmutableConfigObject
+@JacksonConfigObject
+@Value.Immutable
+@JsonDeserialize(builder = ImmutableQueryGroup.Builder.class)
+public interface QueryGroup extends QueryOptions {
+
+    /** Metrics to collect from the query result. May not be empty. */
+    List<MetricDef> metrics();
+
+    @Value.Check
+    default void validate() {
+        validateOptions();
+
+        if (metrics().isEmpty()) {
+            throw new IllegalArgumentException("no metrics provided for query group " + name());
+        }
+        final var names = new HashSet<String>();
+        for (final var metric : metrics()) {
+            if (!names.add(metric.name())) {
+                throw new IllegalArgumentException("duplicate metric in query group " + name() + ": " + metric.name());
+            }
+        }
+    }
+}
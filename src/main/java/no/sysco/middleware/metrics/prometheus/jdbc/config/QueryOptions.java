@@ -0,0 +1,77 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.util.StdConverter;
+
+/** A query and how it's executed, shared by {@linkplain QueryDef query definitions} and {@linkplain QueryGroup groups}. */
+public interface QueryOptions {
+
+    /** Name of the query. */
+    String name();
+
+    /** SQL query to select rows that will represent metric samples. */
+    @JsonUnwrapped
+    QueryString query();
+
+    /** How long to cache the query result until the next refresh. */
+    @JsonProperty("cache_seconds")
+    @JsonDeserialize(converter = JacksonQueryOptionsCacheSecondsConverter.class)
+    Optional<Duration> cacheDuration();
+
+    /** Number of rows fetched from the database at once. Enables cursor based streaming of the result set. */
+    Optional<Integer> fetchSize();
+
+    /** Maximum number of rows read from the result set. Any further rows are ignored. */
+    Optional<Integer> maxRows();
+
+    /**
+     * A cheap query whose result changes whenever the one of the query may have changed, e.g. the latest modification
+     * time of a table. Once the cached result has expired, the query is only run again if the result of the probe has
+     * changed, otherwise the cached result is kept for another cache duration.
+     */
+    Optional<String> changeProbe();
+
+    /** Splits the query into sub-queries that run concurrently on separate connections. */
+    Optional<Partitions> partitions();
+
+    /**
+     * Queries with a higher priority are started before the ones with a lower priority whenever queries have to wait
+     * for a thread, regardless of how long they take.
+     */
+    @Value.Default
+    default int priority() {
+        return 0;
+    }
+
+    default void validateOptions() {
+        if (fetchSize().isPresent() && fetchSize().get() <= 0) {
+            throw new IllegalArgumentException("fetch size must be positive: " + fetchSize().get());
+        }
+        if (maxRows().isPresent() && maxRows().get() <= 0) {
+            throw new IllegalArgumentException("max rows must be positive: " + maxRows().get());
+        }
+    }
+}
+
+@JacksonConfigObject
+final class JacksonQueryOptionsCacheSecondsConverter extends StdConverter<Long, Optional<Duration>> {
+    @Override
+    public Optional<Duration> convert(Long value) {
+        if (value == null) {
+            return Optional.empty();
+        }
+
+        if (value <= 0) {
+            throw new IllegalArgumentException("must be positive: " + value);
+        }
+
+        return Optional.of(Duration.ofSeconds(value));
+    }
+}
@@ -0,0 +1,27 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** What a {@linkplain RelabelRule relabel rule} does, with the same semantics as in Prometheus. */
+public enum RelabelAction {
+
+    /** Sets the target label to the replacement if the regex matches the source labels. */
+    @JsonProperty("replace")
+    REPLACE,
+
+    /** Drops rows whose source labels don't match the regex. */
+    @JsonProperty("keep")
+    KEEP,
+
+    /** Drops rows whose source labels match the regex. */
+    @JsonProperty("drop")
+    DROP,
+
+    /** Removes all labels whose name matches the regex. */
+    @JsonProperty("labeldrop")
+    LABELDROP,
+
+    /** Sets the target label to the hash of the source labels modulo the modulus. */
+    @JsonProperty("hashmod")
+    HASHMOD,
+}
@@ -0,0 +1,106 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The replacement of a relabel rule, in the syntax of Prometheus, i.e. of Go's {@code Regexp.Expand}: {@code $1} and
+ * {@code ${1}} refer to numbered groups of the regex, {@code $name} and {@code ${name}} to named ones, and {@code $$}
+ * is a literal {@code $}. Any other {@code $} is taken literally. Names are taken as long as possible, e.g.
+ * {@code $1x} refers to a group named {@code 1x}, so {@code ${1}x} is needed to follow a group by text.
+ */
+public final class RelabelReplacement {
+
+    /** Literal text before, between and after the group references. */
+    private final List<String> literals = new ArrayList<>();
+    /** The numbers or names of the groups referred to. */
+    private final List<String> references = new ArrayList<>();
+
+    private RelabelReplacement(String replacement) {
+        final var literal = new StringBuilder();
+        var i = 0;
+        while (i < replacement.length()) {
+            final var c = replacement.charAt(i++);
+            if (c != '$' || i == replacement.length()) {
+                literal.append(c);
+            } else if (replacement.charAt(i) == '$') {
+                literal.append('$');
+                i++;
+            } else {
+                final var braced = replacement.charAt(i) == '{';
+                final var start = braced ? i + 1 : i;
+                var end = start;
+                while (end < replacement.length() && isNameChar(replacement.charAt(end))) {
+                    end++;
+                }
+                if (end == start || braced && (end == replacement.length() || replacement.charAt(end) != '}')) {
+                    literal.append(c);
+                } else {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                    references.add(replacement.substring(start, end));
+                    i = braced ? end + 1 : end;
+                }
+            }
+        }
+        literals.add(literal.toString());
+    }
+
+    public static RelabelReplacement parse(String replacement) {
+        return new RelabelReplacement(replacement);
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if the replacement refers to a group the regex doesn't have
+     */
+    void validate(Pattern regex) {
+        // the empty alternative matches anything, so that the matcher can be asked for the groups of the regex
+        final var matcher = Pattern.compile("(?:" + regex.pattern() + ")|", regex.flags()).matcher("");
+        matcher.matches();
+        for (final var reference : references) {
+            if (!hasGroup(matcher, reference)) {
+                throw new IllegalArgumentException(
+                    String.format("relabel replacement refers to missing group %s of %s", reference, regex.pattern()));
+            }
+        }
+    }
+
+    /** The replacement for a successful match, with groups that didn't participate in the match replaced by nothing. */
+    public String expand(Matcher matcher) {
+        final var expanded = new StringBuilder(literals.get(0));
+        for (int i = 0; i < references.size(); i++) {
+            final var reference = references.get(i);
+            if (hasGroup(matcher, reference)) {
+                final var group = isNumber(reference)
+                    ? matcher.group(Integer.parseInt(reference))
+                    : matcher.group(reference);
+                expanded.append(group == null ? "" : group);
+            }
+            expanded.append(literals.get(i + 1));
+        }
+        return expanded.toString();
+    }
+
+    private static boolean hasGroup(Matcher matcher, String reference) {
+        if (isNumber(reference)) {
+            return reference.length() < 10 && Integer.parseInt(reference) <= matcher.groupCount();
+        }
+        try {
+            matcher.group(reference);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static boolean isNumber(String reference) {
+        return reference.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    private static boolean isNameChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_';
+    }
+}
@@ -0,0 +1,75 @@
+package no.sysco.middleware.metrics.prometheus.jdbc.config;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.immutables.value.Value;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+
+/**
+ * Rewrites the labels of a metric's samples, or drops samples, based on their labels, like the relabel configs of
+ * Prometheus. Rules are applied to each row before it is turned into a sample.
+ */
+@ImmutableConfigObject
+@JacksonConfigObject
+@Value.Immutable
+@JsonDeserialize(builder = ImmutableRelabelRule.Builder.class)
+public interface RelabelRule {
+
+    /** Labels whose values are joined with the {@linkplain #separator() separator} and matched against the regex. */
+    List<String> sourceLabels();
+
+    @Value.Default
+    default String separator() {
+        return ";";
+    }
+
+    /** Regular expression that has to match the joined source label values entirely. */
+    @Value.Default
+    default String regex() {
+        return "(.*)";
+    }
+
+    /** Label set by {@link RelabelAction#REPLACE} and {@link RelabelAction#HASHMOD}. */
+    Optional<String> targetLabel();
+
+    /**
+     * Value of the target label, may refer to groups of the regex, e.g. {@code $1} or {@code ${name}}, see
+     * {@link RelabelReplacement}.
+     */
+    @Value.Default
+    default String replacement() {
+        return "$1";
+    }
+
+    /** Modulus of {@link RelabelAction#HASHMOD}. */
+    Optional<Long> modulus();
+
+    @Value.Default
+    default RelabelAction action() {
+        return RelabelAction.REPLACE;
+    }
+
+    @Value.Check
+    default void validate() {
+        final Pattern regex;
+        try {
+            regex = Pattern.compile(regex());
+        } catch (PatternSyntaxException e) {
+            throw new IllegalArgumentException("invalid relabel regex: " + regex(), e);
+        }
+        final var action = action();
+        if (action == RelabelAction.REPLACE) {
+            RelabelReplacement.parse(replacement()).validate(regex);
+        }
+        if ((action == RelabelAction.REPLACE || action == RelabelAction.HASHMOD) && targetLabel().isEmpty()) {
+            throw new IllegalArgumentException("target label required for relabel action " + action);
+        }
+        if (action == RelabelAction.HASHMOD && (modulus().isEmpty() || modulus().get() <= 0)) {
+            throw new IllegalArgumentException("positive modulus required for relabel action " + action);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+class AdmissionControlServletTest {
+
+    @Test
+    void rejectsScrapesExceedingTheLimit() throws Exception {
+        final var registry = new CollectorRegistry();
+        final BlockingCollector collector = new BlockingCollector().register(registry);
+        final var underTest = servlet(registry, false);
+
+        collector.block();
+        final var first = CompletableFuture.runAsync(() -> get(underTest, response(new ByteArrayOutputStream())));
+        assertThat(collector.entered.await(5, TimeUnit.SECONDS), is(true));
+
+        final var rejected = mock(HttpServletResponse.class);
+        underTest.doGet(mock(HttpServletRequest.class), rejected);
+        collector.release();
+        first.get(5, TimeUnit.SECONDS);
+
+        verify(rejected).setHeader("Retry-After", "1");
+        verify(rejected).sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent scrapes");
+        verify(rejected, never()).getOutputStream();
+        assertThat(rejections(registry, "unavailable"), is(1d));
+    }
+
+    @Test
+    void servesLastResponseToScrapesExceedingTheLimit() throws Exception {
+        final var registry = new CollectorRegistry();
+        final BlockingCollector collector = new BlockingCollector().register(registry);
+        final var underTest = servlet(registry, true);
+        final var firstBody = new ByteArrayOutputStream();
+        get(underTest, response(firstBody));
+
+        collector.block();
+        final var second = CompletableFuture.runAsync(() -> get(underTest, response(new ByteArrayOutputStream())));
+        assertThat(collector.entered.await(5, TimeUnit.SECONDS), is(true));
+
+        final var staleBody = new ByteArrayOutputStream();
+        final var stale = response(staleBody);
+        underTest.doGet(mock(HttpServletRequest.class), stale);
+        collector.release();
+        second.get(5, TimeUnit.SECONDS);
+
+        verify(stale).setStatus(HttpServletResponse.SC_OK);
+        verify(stale).setHeader("Warning", "110 - \"Response is Stale\"");
+        assertThat(staleBody.toString(UTF_8), containsString("test_value 1.0"));
+        assertThat(staleBody.toString(UTF_8), is(firstBody.toString(UTF_8)));
+        assertThat(rejections(registry, "stale"), is(1d));
+    }
+
+    private static Double rejections(CollectorRegistry registry, String response) {
+        return registry.getSampleValue(
+            "test_scrapes_rejected_total",
+            new String[] { "response" },
+            new String[] { response });
+    }
+
+    private static AdmissionControlServlet servlet(CollectorRegistry registry, boolean serveStale) {
+        return new AdmissionControlServlet(
+            "test",
+            registry,
+            OptionalInt.of(1),
+            Duration.ofMillis(10),
+            serveStale,
+            Optional.empty(),
+            Duration.ZERO);
+    }
+
+    private static void get(AdmissionControlServlet servlet, HttpServletResponse response) {
+        try {
+            servlet.doGet(mock(HttpServletRequest.class), response);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static HttpServletResponse response(ByteArrayOutputStream body) {
+        final var out = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        final var response = mock(HttpServletResponse.class);
+        try {
+            given(response.getOutputStream()).willReturn(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return response;
+    }
+
+    /** A collector whose collections can be held up, to occupy the permits of the servlet. */
+    private static final class BlockingCollector extends Collector {
+        volatile CountDownLatch entered = new CountDownLatch(0);
+        volatile CountDownLatch released = new CountDownLatch(0);
+
+        void block() {
+            entered = new CountDownLatch(1);
+            released = new CountDownLatch(1);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            entered.countDown();
+            try {
+                released.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of(
+                new MetricFamilySamples(
+                    "test_value",
+                    Type.GAUGE,
+                    "help",
+                    List.of(new MetricFamilySamples.Sample("test_value", List.of(), List.of(), 1d))));
+        }
+    }
+}
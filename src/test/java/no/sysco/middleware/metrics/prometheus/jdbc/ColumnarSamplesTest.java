@@ -0,0 +1,54 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples.Sample;
+
+class ColumnarSamplesTest {
+
+    @Test
+    void materializesTheSameSamplesOnHeap() {
+        assertMaterializesTheSameSamples(false);
+    }
+
+    @Test
+    void materializesTheSameSamplesOffHeap() {
+        assertMaterializesTheSameSamples(true);
+    }
+
+    private static void assertMaterializesTheSameSamples(boolean offHeap) {
+        final var histogramSamples = new ArrayList<Sample>();
+        for (int i = 0; i < 100; i++) {
+            histogramSamples.add(new Sample("h_bucket", List.of("l", "le"), List.of("v" + i % 3, "" + i), i));
+            histogramSamples.add(new Sample("h_sum", List.of("l"), List.of("v" + i % 3), i * 2d));
+        }
+        final var familySamples = List.of(
+            new Collector.MetricFamilySamples(
+                "g",
+                Collector.Type.GAUGE,
+                "gauge",
+                List.of(new Sample("g", List.of(), List.of(), 1d), new Sample("g", List.of(), List.of(), 2d))),
+            new Collector.MetricFamilySamples("empty", Collector.Type.GAUGE, "empty", List.of()),
+            new Collector.MetricFamilySamples("h", Collector.Type.HISTOGRAM, "histogram", histogramSamples),
+            new Collector.MetricFamilySamples(
+                "n",
+                Collector.Type.GAUGE,
+                "null label",
+                List.of(new Sample("n", List.of("l"), Arrays.asList((String) null), 3d))));
+
+        final var columnar = ColumnarSamples.of(familySamples, offHeap);
+
+        assertThat(columnar.isOffHeap(), is(offHeap));
+        assertThat(columnar.sampleCount(), is(203));
+        assertThat(columnar, is(equalTo(familySamples)));
+    }
+}
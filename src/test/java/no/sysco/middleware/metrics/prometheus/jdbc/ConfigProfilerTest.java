@@ -0,0 +1,63 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ConfigProfilerTest {
+
+    private static final String CONFIG = String.join(
+        "\n",
+        "jobs:",
+        "- name: profiled",
+        "  connections:",
+        "  - url: 'jdbc:h2:mem:profiled'",
+        "  queries:",
+        "  - name: numbers",
+        "    labels: [n]",
+        "    values: [v]",
+        "    query: SELECT CAST(X AS VARCHAR) AS n, X AS v FROM SYSTEM_RANGE(1, 5)",
+        "");
+
+    @Test
+    void printsCostOfEachQuery(@TempDir Path dir) throws Exception {
+        final var config = Files.writeString(dir.resolve("config.yml"), CONFIG);
+        final var out = new ByteArrayOutputStream();
+
+        final var exitCode = run(out, config.toString(), "--iterations", "3", "--max-samples", "5");
+
+        assertThat(out.toString(UTF_8), exitCode, is(0));
+        final var report = out.toString(UTF_8);
+        assertThat(report, containsString("P95"));
+        assertThat(report, containsString("numbers"));
+        assertThat(report, containsString("n=5"));
+    }
+
+    @Test
+    void failsIfBudgetIsExceeded(@TempDir Path dir) throws Exception {
+        final var config = Files.writeString(dir.resolve("config.yml"), CONFIG);
+        final var out = new ByteArrayOutputStream();
+
+        assertThat(run(out, config.toString(), "--iterations", "1", "--max-samples", "4"), is(2));
+        assertThat(out.toString(UTF_8), containsString("profiled/numbers on jdbc:h2:mem:profiled: 5 samples exceed 4"));
+
+        assertThat(run(out, config.toString(), "--iterations", "none"), is(1));
+    }
+
+    private static int run(ByteArrayOutputStream out, String... args) {
+        return ConfigProfiler.run(
+            "test",
+            ImmutableExporterSettings.builder().build(),
+            args,
+            new PrintStream(out, true, UTF_8));
+    }
+}
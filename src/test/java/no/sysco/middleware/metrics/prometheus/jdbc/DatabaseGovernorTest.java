@@ -0,0 +1,120 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.BDDMockito.given;
+
+import java.sql.SQLTransientException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import io.prometheus.client.CollectorRegistry;
+
+@ExtendWith(MockitoExtension.class)
+class DatabaseGovernorTest {
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+
+    @Test
+    void limitsConcurrentQueriesPerDatabase() throws Exception {
+        final var settings = ImmutableExporterSettings.builder()
+            .dbMaxConcurrentQueries(1)
+            .dbQueueTimeout(Duration.ZERO)
+            .build();
+        final var underTest = new DatabaseGovernor("test", settings, registry);
+
+        try (final var permit = underTest.acquire("jdbc:a")) {
+            assertThrows(SQLTransientException.class, () -> underTest.acquire("jdbc:a"));
+            underTest.acquire("jdbc:b").close();
+        }
+        underTest.acquire("jdbc:a").close();
+
+        assertThat(
+            registry.getSampleValue(
+                "test_db_governor_rejections_total",
+                new String[] { "database", "reason" },
+                new String[] { "jdbc:a", "concurrency" }),
+            is(1d));
+    }
+
+    @Test
+    void limitsQueryRatePerDatabase() throws Exception {
+        final var settings = ImmutableExporterSettings.builder()
+            .dbMaxQueriesPerSecond(2d)
+            .dbQueueTimeout(Duration.ZERO)
+            .build();
+        final var underTest = new DatabaseGovernor("test", settings, registry);
+
+        underTest.acquire("jdbc:a").close();
+        underTest.acquire("jdbc:a").close();
+        assertThrows(SQLTransientException.class, () -> underTest.acquire("jdbc:a"));
+
+        assertThat(
+            registry.getSampleValue(
+                "test_db_governor_rejections_total",
+                new String[] { "database", "reason" },
+                new String[] { "jdbc:a", "rate" }),
+            is(1d));
+    }
+
+    @Test
+    void discardsLimitsOfIdleDatabases(@Mock Clock clock) throws Exception {
+        final var settings = ImmutableExporterSettings.builder()
+            .dbMaxConcurrentQueries(1)
+            .dbQueueTimeout(Duration.ZERO)
+            .dbIdleTimeout(Duration.ofMinutes(1))
+            .build();
+        final var now = Instant.now();
+        given(clock.instant()).willReturn(now);
+        final var underTest = new DatabaseGovernor("test", settings, registry, clock);
+
+        underTest.acquire("jdbc:a").close();
+        final var held = underTest.acquire("jdbc:b");
+        assertThat(underTest.databaseCount(), is(2));
+
+        given(clock.instant()).willReturn(now.plusSeconds(90));
+        underTest.acquire("jdbc:c").close();
+        held.close();
+
+        assertThat(underTest.databaseCount(), is(2));
+        assertThat(waitCount("jdbc:a"), is(nullValue()));
+        assertThat(waitCount("jdbc:b"), is(1d));
+
+        given(clock.instant()).willReturn(now.plusSeconds(120));
+        underTest.acquire("jdbc:c").close();
+        given(clock.instant()).willReturn(now.plusSeconds(170));
+        underTest.acquire("jdbc:c").close();
+
+        assertThat(underTest.databaseCount(), is(1));
+        assertThat(waitCount("jdbc:b"), is(nullValue()));
+        assertThat(waitCount("jdbc:c"), is(3d));
+    }
+
+    @Test
+    void tokenBucketQueuesWaitingCallersInArrivalOrder() {
+        final var second = TimeUnit.SECONDS.toNanos(1);
+        final var underTest = new DatabaseGovernor.TokenBucket(1);
+        final var now = System.nanoTime();
+
+        assertThat(underTest.reserve(now, now), is(0L));
+        assertThat(underTest.reserve(now, now + 10 * second), is(second));
+        assertThat(underTest.reserve(now, now + 10 * second), is(2 * second));
+        assertThat(underTest.reserve(now, now + second), is(-1L));
+    }
+
+    private Double waitCount(String database) {
+        return registry.getSampleValue(
+            "test_db_governor_wait_seconds_count",
+            new String[] { "database" },
+            new String[] { database });
+    }
+}
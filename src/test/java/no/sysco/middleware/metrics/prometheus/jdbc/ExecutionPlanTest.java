@@ -0,0 +1,59 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConfig;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryString;
+
+class ExecutionPlanTest {
+
+    @Test
+    void compilesQueriesPerConnection() {
+        final var config = ImmutableConfig.builder()
+            .putQueries("shared", "select 1")
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("job")
+                    .addConnections(
+                        ImmutableConnectionDef.builder().url("jdbc:a").build(),
+                        ImmutableConnectionDef.builder().url("jdbc:b").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .putStaticLabels("stat", "ic")
+                            .addLabels("l")
+                            .addValues("v")
+                            .query(QueryString.queryRef("shared"))
+                            .build(),
+                        ImmutableQueryDef.builder().name("q2").addValues("v").query(QueryString.query("x")).build())
+                    .build())
+            .build();
+
+        final var plan = ExecutionPlan.compile("test", config, "test.yml", new QueryStatistics("test"));
+
+        final var job = plan.jobs.get(0);
+        assertThat(job.connections, hasSize(2));
+        assertThat(
+            job.connections.stream().flatMap(conn -> conn.tasks.stream()).map(task -> task.query.name()).collect(toList()),
+            containsInAnyOrder("q1", "q2", "q1", "q2"));
+
+        final var task = job.connections.get(0).tasks.get(0);
+        assertThat(task.queryTemplate, is("select 1"));
+        assertThat(task.metrics.get(0).name, is("test_q1"));
+        assertThat(task.metrics.get(0).help, is("column v"));
+        assertThat(task.metrics.get(0).labelNames, is(List.of("stat", "l")));
+        assertThat(List.of(task.metrics.get(0).staticLabelValues), is(List.of("ic")));
+        assertThat(List.of(task.metrics.get(0).resultLabelNames), is(List.of("l")));
+    }
+}
@@ -0,0 +1,78 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.prometheus.client.Collector;
+
+class FileSnapshotStoreTest {
+
+    @Test
+    void restoresSavedResults(@TempDir Path dir) throws IOException {
+        final var result = new SampleResult(Instant.ofEpochSecond(1_600_000_000L, 42));
+        result.scrapeDuration = Duration.ofMillis(1337);
+        result.changeToken = Optional.of("token");
+        result.samples.add(
+            new Collector.MetricFamilySamples(
+                "test_q1",
+                Collector.Type.GAUGE,
+                "help",
+                List.of(
+                    new Collector.MetricFamilySamples.Sample("test_q1", List.of("a", "b"), List.of("x", "y"), 1d),
+                    new Collector.MetricFamilySamples.Sample("test_q1", List.of("a", "b"), List.of("x", "z"), 2d))));
+
+        final var store = new FileSnapshotStore(dir);
+        store.save("key", result);
+        store.close();
+
+        final var restored = new FileSnapshotStore(dir).restore("key").get();
+        assertThat(restored.sampleTime, is(result.sampleTime));
+        assertThat(restored.scrapeDuration, is(result.scrapeDuration));
+        assertThat(restored.changeToken, is(Optional.of("token")));
+        assertThat(restored.samples, is(equalTo(result.samples)));
+    }
+
+    @Test
+    void deletesSnapshotsOfUnusedKeys(@TempDir Path dir) throws IOException {
+        FileSnapshotStore.write(dir.resolve("used.snapshot"), new SampleResult(Instant.now()));
+        FileSnapshotStore.write(dir.resolve("unused.snapshot"), new SampleResult(Instant.now()));
+
+        final var store = new FileSnapshotStore(dir);
+        store.retain(Set.of("used"));
+        store.close();
+
+        assertThat(store.restore("unused"), is(Optional.empty()));
+        assertThat(Files.exists(dir.resolve("unused.snapshot")), is(false));
+        assertThat(store.restore("used").isPresent(), is(true));
+    }
+
+    @Test
+    void ignoresCorruptAndIncompleteSnapshots(@TempDir Path dir) throws IOException {
+        final var result = new SampleResult(Instant.now());
+        FileSnapshotStore.write(dir.resolve("corrupt.snapshot"), result);
+        final var data = Files.readAllBytes(dir.resolve("corrupt.snapshot"));
+        data[data.length / 2] ^= 1;
+        Files.write(dir.resolve("corrupt.snapshot"), data);
+        Files.write(dir.resolve("incomplete.snapshot.tmp"), new byte[] { 1, 2, 3 });
+
+        final var store = new FileSnapshotStore(dir);
+
+        assertThat(store.restore("corrupt"), is(Optional.empty()));
+        try (final var files = Files.list(dir)) {
+            assertThat(files.toArray(), is(equalTo(new Object[0])));
+        }
+    }
+}
@@ -4,32 +4,49 @@ import static java.util.stream.Collectors.toList;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
 import static org.mockito.Answers.RETURNS_DEEP_STUBS;
 import static org.mockito.BDDMockito.given;
 import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import java.sql.ResultSet;
 import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.hamcrest.Description;
 import org.hamcrest.Matcher;
 import org.hamcrest.TypeSafeDiagnosingMatcher;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.opentest4j.AssertionFailedError;
 
 import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.AggregationOp;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableAggregation;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConfig;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConnectionDef;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableMetricDef;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutablePartitions;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryGroup;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.MetricType;
 import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryString;
 
 @ExtendWith(MockitoExtension.class)
@@ -81,7 +98,8 @@ class JdbcConfigTest {
             containsInAnyOrder(
                 samplesNamed(equalTo("test_q1")),
                 samplesNamed(equalTo("test_scrape_duration_seconds")),
-                samplesNamed(equalTo("test_scrape_error"))));
+                samplesNamed(equalTo("test_scrape_error")),
+                samplesNamed(equalTo("test_scrape_timeout"))));
 
         final var querySamples = allSamples.stream().filter(s -> "test_q1".equals(s.name)).findFirst().get();
         assertThat(querySamples.name, is("test_q1"));
@@ -116,6 +134,641 @@ class JdbcConfigTest {
         inOrder.verifyNoMoreInteractions();
     }
 
+    @Test
+    void aggregatesHistogramsFromRawRows(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("aggregatesHistogramsFromRawRows")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("h")
+                            .type(MetricType.HISTOGRAM)
+                            .addBuckets(1d, 10d)
+                            .addLabels("fromResultSet")
+                            .addValues("value")
+                            .query(QueryString.query("1337"))
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("test")).willReturn("db");
+        given(renderer.render("1337")).willReturn("leet");
+        final var rs = Mockito.mock(ResultSet.class);
+        final var conn = connProvider.getConnection("db", Map.of());
+        final var stmt = conn.prepareStatement("leet");
+        given(stmt.executeQuery()).willReturn(rs);
+        given(rs.next()).willReturn(true, true, true, false);
+        given(rs.getString("fromResultSet")).willReturn("foo", "foo", "bar");
+        given(rs.getDouble("value")).willReturn(0.5d, 20d, 5d);
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var histogram = underTest.runJobs().filter(s -> "test_h".equals(s.name)).findFirst().get();
+        assertThat(histogram.type, is(Collector.Type.HISTOGRAM));
+        assertThat(histogram.samples, hasSize(10));
+        assertThat(
+            histogram.samples,
+            hasItems(
+                sampleWith(equalTo("test_h_bucket"), equalTo(1d), equalTo(Map.of("fromResultSet", "foo", "le", "1.0"))),
+                sampleWith(equalTo("test_h_bucket"), equalTo(1d), equalTo(Map.of("fromResultSet", "foo", "le", "10.0"))),
+                sampleWith(equalTo("test_h_bucket"), equalTo(2d), equalTo(Map.of("fromResultSet", "foo", "le", "+Inf"))),
+                sampleWith(equalTo("test_h_count"), equalTo(2d), equalTo(Map.of("fromResultSet", "foo"))),
+                sampleWith(equalTo("test_h_sum"), equalTo(20.5d), equalTo(Map.of("fromResultSet", "foo"))),
+                sampleWith(equalTo("test_h_bucket"), equalTo(0d), equalTo(Map.of("fromResultSet", "bar", "le", "1.0"))),
+                sampleWith(equalTo("test_h_bucket"), equalTo(1d), equalTo(Map.of("fromResultSet", "bar", "le", "10.0"))),
+                sampleWith(equalTo("test_h_count"), equalTo(1d), equalTo(Map.of("fromResultSet", "bar")))));
+    }
+
+    @Test
+    void aggregatesSummariesOfPartitionsFromRawRows(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("aggregatesSummariesOfPartitionsFromRawRows")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("s")
+                            .type(MetricType.SUMMARY)
+                            .addQuantiles(0.5d, 0.9d)
+                            .addLabels("fromResultSet")
+                            .addValues("value")
+                            .query(QueryString.query("1337"))
+                            .partitions(ImmutablePartitions.builder().rangeFrom(0L).rangeTo(2L).buckets(2).build())
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("test")).willReturn("db");
+        final var conn = connProvider.getConnection("db", Map.of());
+        // the values of foo and bar are spread across both partitions
+        final var labels = Map.of("0", List.of("foo", "bar", "foo"), "1", List.of("foo", "bar", "foo"));
+        final var values = Map.of("0", List.of(3d, 10d, 1d), "1", List.of(4d, 20d, 2d));
+        for (final var partition : List.of("0", "1")) {
+            final var from = Integer.parseInt(partition);
+            final var partitionRenderer = Mockito.mock(TemplateRenderer.class);
+            given(
+                renderer.with(
+                    Map.of(
+                        "partition",
+                        partition,
+                        "partition_from",
+                        Integer.toString(from),
+                        "partition_to",
+                        Integer.toString(from + 1))))
+                .willReturn(partitionRenderer);
+            given(partitionRenderer.render("1337")).willReturn("leet" + partition);
+
+            final var rs = Mockito.mock(ResultSet.class);
+            given(rs.next()).willReturn(true, true, true, false);
+            final var partitionLabels = labels.get(partition);
+            given(rs.getString("fromResultSet"))
+                .willReturn(partitionLabels.get(0), partitionLabels.get(1), partitionLabels.get(2));
+            final var partitionValues = values.get(partition);
+            given(rs.getDouble("value"))
+                .willReturn(partitionValues.get(0), partitionValues.get(1), partitionValues.get(2));
+            given(conn.prepareStatement("leet" + partition).executeQuery()).willReturn(rs);
+        }
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var summary = underTest.runJobs().filter(s -> "test_s".equals(s.name)).findFirst().get();
+        assertThat(summary.type, is(Collector.Type.SUMMARY));
+        assertThat(summary.samples, hasSize(8));
+        assertThat(
+            summary.samples,
+            hasItems(
+                sampleWith(equalTo("test_s"), equalTo(2d), equalTo(Map.of("fromResultSet", "foo", "quantile", "0.5"))),
+                sampleWith(equalTo("test_s"), equalTo(4d), equalTo(Map.of("fromResultSet", "foo", "quantile", "0.9"))),
+                sampleWith(equalTo("test_s_count"), equalTo(4d), equalTo(Map.of("fromResultSet", "foo"))),
+                sampleWith(equalTo("test_s_sum"), equalTo(10d), equalTo(Map.of("fromResultSet", "foo"))),
+                sampleWith(equalTo("test_s"), equalTo(10d), equalTo(Map.of("fromResultSet", "bar", "quantile", "0.5"))),
+                sampleWith(equalTo("test_s"), equalTo(20d), equalTo(Map.of("fromResultSet", "bar", "quantile", "0.9"))),
+                sampleWith(equalTo("test_s_count"), equalTo(2d), equalTo(Map.of("fromResultSet", "bar")))));
+    }
+
+    @Test
+    void streamsBoundedResultSetsWithCursor(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("streamsBoundedResultSetsWithCursor")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addValues("value")
+                            .fetchSize(100)
+                            .maxRows(2)
+                            .query(QueryString.query("1337"))
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("test")).willReturn("db");
+        given(renderer.render("1337")).willReturn("leet");
+        final var rs = Mockito.mock(ResultSet.class);
+        final var conn = connProvider.getConnection("db", Map.of());
+        final var stmt = conn.prepareStatement("leet");
+        given(conn.getAutoCommit()).willReturn(true);
+        given(stmt.executeQuery()).willReturn(rs);
+        given(rs.next()).willReturn(true);
+        given(rs.getDouble("value")).willReturn(42d);
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var querySamples = underTest.runJobs().filter(s -> "test_q1".equals(s.name)).findFirst().get();
+        assertThat(querySamples.samples, hasSize(2));
+
+        final var inOrder = Mockito.inOrder(conn, stmt, rs);
+        inOrder.verify(stmt).setMaxRows(3);
+        inOrder.verify(stmt).setFetchSize(100);
+        inOrder.verify(conn).setAutoCommit(false);
+        inOrder.verify(stmt).executeQuery();
+        inOrder.verify(rs, times(3)).next();
+        inOrder.verify(rs).close();
+        inOrder.verify(conn).rollback();
+        inOrder.verify(conn).setAutoCommit(true);
+        inOrder.verify(stmt).close();
+        // the cursor query has a connection of its own, besides the one shared by the job's queries
+        inOrder.verify(conn, times(2)).close();
+        verify(connProvider, times(3)).getConnection("db", Map.of()); // including the stubbing above
+    }
+
+    @Test
+    void fansOutQueryGroupsToAllMetrics(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("fansOutQueryGroupsToAllMetrics")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueryGroups(
+                        ImmutableQueryGroup.builder()
+                            .name("tables")
+                            .query(QueryString.query("1337"))
+                            .addMetrics(
+                                ImmutableMetricDef.builder().name("rows").addLabels("t").addValues("r").build(),
+                                ImmutableMetricDef.builder().name("bytes").addValues("b").build())
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("test")).willReturn("db");
+        given(renderer.render("1337")).willReturn("leet");
+        final var rs = Mockito.mock(ResultSet.class);
+        final var conn = connProvider.getConnection("db", Map.of());
+        final var stmt = conn.prepareStatement("leet");
+        given(stmt.executeQuery()).willReturn(rs);
+        given(rs.next()).willReturn(true).willReturn(false);
+        given(rs.getString("t")).willReturn("foo");
+        given(rs.getDouble("r")).willReturn(42d);
+        given(rs.getDouble("b")).willReturn(4096d);
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var allSamples = underTest.runJobs().flatMap(s -> s.samples.stream()).collect(toList());
+        assertThat(
+            allSamples,
+            hasItems(
+                sampleWith(equalTo("test_rows"), equalTo(42d), equalTo(Map.of("t", "foo"))),
+                sampleWith(equalTo("test_bytes"), equalTo(4096d), equalTo(Map.of()))));
+        Mockito.verify(stmt, times(1)).executeQuery();
+    }
+
+    @Test
+    void runsQueriesOnR2dbcConnections(
+        @Mock ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock)
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("runsQueriesOnR2dbcConnections")
+                    .addConnections(ImmutableConnectionDef.builder().url("r2dbc:h2:mem:///r2dbc").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addLabels("l")
+                            .addValues("v")
+                            .query(QueryString.query("select x as v, 'l' || x as l from system_range(1, 1000)"))
+                            .fetchSize(10)
+                            .maxRows(25)
+                            .build())
+                    .build())
+            .build();
+        given(renderer.render(Mockito.anyString())).willAnswer(invocation -> invocation.getArgument(0));
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var allSamples = underTest.runJobs().collect(toList());
+        final var querySamples = allSamples.stream().filter(s -> "test_q1".equals(s.name)).findFirst().get();
+        assertThat(querySamples.samples, hasSize(25));
+        assertThat(
+            querySamples.samples,
+            hasItems(sampleWith(equalTo("test_q1"), equalTo(25d), equalTo(Map.of("l", "l25")))));
+        Mockito.verifyNoInteractions(connProvider);
+    }
+
+    @Test
+    void connectsToR2dbcDatabasesOnlyIfResultsAreNotCached(
+        @Mock ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock)
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("connectsToR2dbcDatabasesOnlyIfResultsAreNotCached")
+                    .addConnections(ImmutableConnectionDef.builder().url("url").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addValues("v")
+                            .query(QueryString.query("select 42 as v"))
+                            .cacheDuration(Duration.ofMinutes(1))
+                            .build())
+                    .build())
+            .build();
+        given(renderer.render(Mockito.anyString())).willAnswer(invocation -> invocation.getArgument(0));
+        // connecting fails after the first scrape, as there's no driver for the URL
+        given(renderer.render("url")).willReturn("r2dbc:h2:mem:///cached").willReturn("r2dbc:none://db");
+        given(clock.instant()).willReturn(Instant.parse("2021-01-01T00:00:00Z"));
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        for (int i = 0; i < 2; i++) {
+            final var allSamples = underTest.runJobs().flatMap(s -> s.samples.stream()).collect(toList());
+            assertThat(allSamples, hasItems(sampleWith(equalTo("test_q1"), equalTo(42d), equalTo(Map.of()))));
+            assertThat(allSamples, hasItems(sampleWith(equalTo("test_scrape_error"), equalTo(0d), equalTo(Map.of()))));
+        }
+    }
+
+    @Test
+    void mergesRowsOfPartitions(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("mergesRowsOfPartitions")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .type(MetricType.HISTOGRAM)
+                            .addBuckets(10d)
+                            .addValues("v")
+                            .query(QueryString.query("1337"))
+                            .partitions(ImmutablePartitions.builder().rangeFrom(0L).rangeTo(100L).buckets(4).build())
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("test")).willReturn("db");
+        // all partitions get connections of their own, but the mocked provider returns the same one each time
+        final var conn = connProvider.getConnection("db", Map.of());
+        for (final var partition : List.of("0", "1", "2", "3")) {
+            final var from = Integer.parseInt(partition) * 25;
+            final var partitionRenderer = Mockito.mock(TemplateRenderer.class);
+            given(
+                renderer.with(
+                    Map.of(
+                        "partition",
+                        partition,
+                        "partition_from",
+                        Integer.toString(from),
+                        "partition_to",
+                        Integer.toString(from + 25))))
+                .willReturn(partitionRenderer);
+            given(partitionRenderer.render("1337")).willReturn("leet" + partition);
+
+            final var rs = Mockito.mock(ResultSet.class);
+            given(rs.next()).willReturn(true, true, false);
+            given(rs.getDouble("v")).willReturn(Double.parseDouble(partition) * 5);
+            given(conn.prepareStatement("leet" + partition).executeQuery()).willReturn(rs);
+        }
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var allSamples = underTest.runJobs().flatMap(s -> s.samples.stream()).collect(toList());
+        assertThat(
+            allSamples,
+            hasItems(
+                sampleWith(equalTo("test_q1_count"), equalTo(8d), equalTo(Map.of())),
+                sampleWith(equalTo("test_q1_bucket"), equalTo(6d), equalTo(Map.of("le", "10.0"))),
+                sampleWith(equalTo("test_q1_sum"), equalTo(60d), equalTo(Map.of()))));
+        // the shared connection and one per partition
+        Mockito.verify(conn, times(5)).close();
+    }
+
+    @Test
+    void aggregatesSamplesAcrossConnections(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("aggregatesSamplesAcrossConnections")
+                    .addConnections(ImmutableConnectionDef.builder().url("shard1").build())
+                    .addConnections(ImmutableConnectionDef.builder().url("shard2").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addLabels("status")
+                            .addValues("v")
+                            .query(QueryString.query("1337"))
+                            .addAggregations(ImmutableAggregation.builder().op(AggregationOp.SUM).addBy("status").build())
+                            .addAggregations(ImmutableAggregation.builder().op(AggregationOp.MAX).build())
+                            .addAggregations(
+                                ImmutableAggregation.builder().op(AggregationOp.COUNT).name("q1_shards").build())
+                            .aggregateOnly(true)
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.render("1337")).willReturn("leet");
+        for (final var shard : List.of("1", "2")) {
+            given(renderer.render("shard" + shard)).willReturn("db" + shard);
+            final var rs = connProvider.getConnection("db" + shard, Map.of()).prepareStatement("leet").executeQuery();
+            given(rs.next()).willReturn(true, true, false);
+            given(rs.getString("status")).willReturn("a", "b");
+            given(rs.getDouble("v")).willReturn(Double.parseDouble(shard), 10d);
+        }
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        final var families = underTest.runJobs().collect(toList());
+        assertThat(families.stream().noneMatch(family -> family.name.equals("test_q1")), is(true));
+        final var allSamples = families.stream().flatMap(s -> s.samples.stream()).collect(toList());
+        assertThat(
+            allSamples,
+            hasItems(
+                sampleWith(equalTo("test_q1_sum"), equalTo(3d), equalTo(Map.of("status", "a"))),
+                sampleWith(equalTo("test_q1_sum"), equalTo(20d), equalTo(Map.of("status", "b"))),
+                sampleWith(equalTo("test_q1_max"), equalTo(10d), equalTo(Map.of())),
+                sampleWith(equalTo("test_q1_shards"), equalTo(4d), equalTo(Map.of()))));
+    }
+
+    @Test
+    void skipsQueriesWhileChangeProbeIsUnchanged(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock,
+        @Mock SnapshotStore snapshots) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("skipsQueriesWhileChangeProbeIsUnchanged")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addValues("v")
+                            .query(QueryString.query("1337"))
+                            .cacheDuration(Duration.ofMinutes(1))
+                            .changeProbe("probe")
+                            .build())
+                    .build())
+            .build();
+
+        final var now = new AtomicReference<>(Instant.parse("2020-01-01T00:00:00Z"));
+        given(clock.instant()).willAnswer(invocation -> now.get());
+        given(renderer.render("test")).willReturn("db");
+        given(renderer.render("1337")).willReturn("leet");
+        given(renderer.render("probe")).willReturn("probe-sql");
+        final var conn = connProvider.getConnection("db", Map.of());
+
+        final var probe = conn.prepareStatement("probe-sql").executeQuery();
+        given(probe.next()).willReturn(true, false, true, false, true, false);
+        given(probe.getMetaData().getColumnCount()).willReturn(1);
+        given(probe.getString(1)).willReturn("2019-12-31", "2019-12-31", "2020-01-01");
+
+        final var stmt = conn.prepareStatement("leet");
+        final var rs = Mockito.mock(ResultSet.class);
+        given(stmt.executeQuery()).willReturn(rs);
+        given(rs.next()).willReturn(true, false, true, false);
+        given(rs.getDouble("v")).willReturn(1d, 2d);
+
+        final var settings = ImmutableExporterSettings.builder().build();
+        final var underTest = new JdbcConfig(
+            "test",
+            config,
+            "",
+            connProvider,
+            renderer,
+            clock,
+            settings,
+            snapshots,
+            new QueryStatistics("test"),
+            new DatabaseGovernor("test", settings, new CollectorRegistry()),
+            new SampleCache("test", settings, new CollectorRegistry()),
+            new QueryExecutor("test", settings, new CollectorRegistry()));
+
+        // when, then
+        for (final var expected : List.of(1d, 1d, 2d)) {
+            final var allSamples = underTest.runJobs().flatMap(s -> s.samples.stream()).collect(toList());
+            assertThat(allSamples, hasItems(sampleWith(equalTo("test_q1"), equalTo(expected), equalTo(Map.of()))));
+            // a refresh is due within a cache duration, depending on the jitter
+            now.set(now.get().plus(Duration.ofMinutes(1)));
+        }
+        Mockito.verify(stmt, times(2)).executeQuery();
+
+        // results renewed by the probe are snapshotted as well, along with the token of the probe
+        final var saved = ArgumentCaptor.forClass(SampleResult.class);
+        Mockito.verify(snapshots, times(3)).save(Mockito.anyString(), saved.capture());
+        final var renewed = saved.getAllValues().get(1);
+        assertThat(renewed.sampleTime, is(Instant.parse("2020-01-01T00:01:00Z")));
+        assertThat(renewed.changeToken.isPresent(), is(true));
+        assertThat(renewed.changeToken, is(saved.getAllValues().get(0).changeToken));
+        assertThat(saved.getAllValues().get(2).changeToken, is(not(renewed.changeToken)));
+    }
+
+    @Test
+    void probesModulesWithTarget(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider probeConnections,
+        @Mock TemplateRenderer renderer,
+        @Mock TemplateRenderer targetRenderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addModules(
+                ImmutableJob.builder()
+                    .name("db")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("up")
+                            .addValues("up")
+                            .query(QueryString.query("1337"))
+                            .cacheDuration(Duration.ofMinutes(1))
+                            .build())
+                    .build())
+            .build();
+
+        given(renderer.with(Map.of("target", "host:5432"))).willReturn(targetRenderer);
+        given(targetRenderer.render("test")).willReturn("db://host:5432");
+        given(targetRenderer.render("1337")).willReturn("leet");
+        final var rs = Mockito.mock(ResultSet.class);
+        final var conn = probeConnections.getConnection("db://host:5432", Map.of());
+        final var stmt = conn.prepareStatement("leet");
+        given(stmt.executeQuery()).willReturn(rs);
+        given(rs.next()).willReturn(true).willReturn(false).willReturn(true).willReturn(false);
+        given(rs.getDouble("up")).willReturn(1d);
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+
+        // then
+        assertThat(underTest.runJobs().filter(s -> "test_up".equals(s.name)).count(), is(0L));
+        assertThat(underTest.probe("other", "host:5432", probeConnections, Optional.empty()).isPresent(), is(false));
+        for (int i = 0; i < 2; i++) {
+            final var samples = underTest.probe("db", "host:5432", probeConnections, Optional.empty()).orElseThrow()
+                .stream()
+                .flatMap(s -> s.samples.stream())
+                .collect(toList());
+            assertThat(samples, hasItems(sampleWith(equalTo("test_up"), equalTo(1d), equalTo(Map.of()))));
+        }
+        // probes are never cached
+        Mockito.verify(stmt, times(2)).executeQuery();
+        Mockito.verifyNoInteractions(connProvider);
+    }
+
+    @Test
+    void governsProbesByTarget() {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addModules(
+                ImmutableJob.builder()
+                    .name("db")
+                    .addConnections(ImmutableConnectionDef.builder().url("jdbc:h2:mem:${target}").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("up")
+                            .addValues("up")
+                            .query(QueryString.query("select 1 as up"))
+                            .build())
+                    .build())
+            .build();
+        final var settings = ImmutableExporterSettings.builder().dbMaxConcurrentQueries(1).build();
+        final var registry = new CollectorRegistry();
+
+        // when
+        final var underTest = new JdbcConfig(
+            "test",
+            config,
+            "",
+            ConnectionProvider.DRIVER_MANAGER,
+            new FreemarkerOsEnvRenderer(),
+            Clock.systemUTC(),
+            settings,
+            SnapshotStore.NONE,
+            new QueryStatistics("test"),
+            new DatabaseGovernor("test", settings, registry),
+            new SampleCache("test", settings, new CollectorRegistry()),
+            new QueryExecutor("test", settings, new CollectorRegistry()));
+        underTest.probe("db", "first", ConnectionProvider.DRIVER_MANAGER, Optional.empty()).orElseThrow();
+        underTest.probe("db", "second", ConnectionProvider.DRIVER_MANAGER, Optional.empty()).orElseThrow();
+
+        // then
+        final var labels = new String[] { "database" };
+        assertThat(
+            registry.getSampleValue("test_db_governor_wait_seconds_count", labels, new String[] { "jdbc:h2:mem:first" }),
+            is(1d));
+        assertThat(
+            registry.getSampleValue("test_db_governor_wait_seconds_count", labels, new String[] { "jdbc:h2:mem:second" }),
+            is(1d));
+    }
+
+    @Test
+    void skipsQueriesAfterScrapeDeadline(
+        @Mock(answer = RETURNS_DEEP_STUBS) ConnectionProvider connProvider,
+        @Mock TemplateRenderer renderer,
+        @Mock Clock clock) throws Exception
+    {
+        // given
+        final var config = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("skipsQueriesAfterScrapeDeadline")
+                    .addConnections(ImmutableConnectionDef.builder().url("test").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("q1")
+                            .addValues("value")
+                            .query(QueryString.query("1337"))
+                            .build())
+                    .build())
+            .build();
+
+        // when
+        final var underTest = new JdbcConfig("test", config, connProvider, renderer, clock);
+        final var allSamples = underTest.runJobs(Optional.of(ScrapeDeadline.after(Duration.ZERO))).collect(toList());
+
+        // then
+        assertThat(
+            allSamples,
+            containsInAnyOrder(
+                samplesNamed(equalTo("test_scrape_duration_seconds")),
+                samplesNamed(equalTo("test_scrape_error")),
+                samplesNamed(equalTo("test_scrape_timeout"))));
+        for (final var name : List.of("test_scrape_error", "test_scrape_timeout")) {
+            final var samples = allSamples.stream().filter(s -> name.equals(s.name)).findFirst().get();
+            assertThat(samples.samples.get(0).value, is(1d));
+        }
+        Mockito.verifyNoInteractions(connProvider);
+    }
+
     private static final Matcher<Collector.MetricFamilySamples> samplesNamed(Matcher<? super String> name) {
         return new TypeSafeDiagnosingMatcher<Collector.MetricFamilySamples>() {
             @Override
@@ -0,0 +1,39 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
+
+class JfrEventsTest {
+
+    @Test
+    void recordsTemplateRendering(@TempDir Path dir) throws Exception {
+        final var renderer = new FreemarkerOsEnvRenderer();
+        final var dump = dir.resolve("recording.jfr");
+
+        try (final var recording = new Recording()) {
+            recording.enable("no.sysco.jdbc.Render").withThreshold(Duration.ZERO);
+            recording.start();
+            renderer.render("select 1");
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        final var events = RecordingFile.readAllEvents(dump)
+            .stream()
+            .filter(event -> event.getEventType().getName().equals("no.sysco.jdbc.Render"))
+            .collect(toList());
+        assertThat(events, hasSize(1));
+        assertThat(events.get(0).getInt("templateLength"), is(8));
+    }
+}
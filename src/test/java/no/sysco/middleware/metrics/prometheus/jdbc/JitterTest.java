@@ -0,0 +1,44 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+class JitterTest {
+
+    private static final Duration PERIOD = Duration.ofMinutes(1);
+
+    @Test
+    void refreshesOncePerPeriodAtAFixedPhase() {
+        final var underTest = new Jitter("instance-1");
+        final var phase = underTest.phase("query", PERIOD);
+        final var last = Instant.parse("2020-01-01T00:00:00Z").plus(phase).plusSeconds(1);
+
+        final var next = underTest.next("query", last, PERIOD);
+
+        assertThat(next, is(last.minusSeconds(1).plus(PERIOD)));
+        assertThat(underTest.next("query", next, PERIOD), is(next.plus(PERIOD)));
+    }
+
+    @Test
+    void spreadsInstancesOverThePeriod() {
+        final var slots = new HashSet<Long>();
+        for (int instance = 0; instance < 80; instance++) {
+            final var phase = new Jitter("instance-" + instance).phase("query", PERIOD);
+            assertThat(phase.isNegative(), is(false));
+            assertThat(phase, lessThan(PERIOD));
+            slots.add(phase.getSeconds() / 10);
+        }
+
+        // all six 10 second slots of the period are used
+        assertThat(slots.size(), is(6));
+        assertThat(new Jitter("a").phase("q1", PERIOD), is(new Jitter("a").phase("q1", PERIOD)));
+        assertThat(new Jitter("a").phase("q1", Duration.ZERO), is(Duration.ZERO));
+    }
+}
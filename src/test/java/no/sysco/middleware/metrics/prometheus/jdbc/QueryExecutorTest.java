@@ -0,0 +1,66 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import io.prometheus.client.CollectorRegistry;
+
+class QueryExecutorTest {
+
+    @Test
+    void startsQueriesByPriorityAndLongestExpectedDurationFirst() throws Exception {
+        final var underTest = new QueryExecutor(
+            "test",
+            ImmutableExporterSettings.builder().queryThreads(1).build(),
+            new CollectorRegistry());
+
+        // occupy the only thread until all queries have been submitted
+        final var blocked = new CountDownLatch(1);
+        final var blocker = underTest.submit(0, Optional.empty(), () -> {
+            try {
+                return blocked.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        final var started = new CopyOnWriteArrayList<String>();
+        final var queries = List.of(
+            submit(underTest, started, "short", 0, Optional.of(Duration.ofMillis(10))),
+            submit(underTest, started, "long", 0, Optional.of(Duration.ofSeconds(20))),
+            submit(underTest, started, "critical", 1, Optional.of(Duration.ofMillis(1))),
+            submit(underTest, started, "unknown", 0, Optional.empty()),
+            submit(underTest, started, "also short", 0, Optional.of(Duration.ofMillis(10))));
+        blocked.countDown();
+
+        assertThat(blocker.get(5, TimeUnit.SECONDS), is(true));
+        for (final var query : queries) {
+            query.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(started, contains("critical", "unknown", "long", "short", "also short"));
+    }
+
+    private static CompletableFuture<String> submit(
+        QueryExecutor executor,
+        List<String> started,
+        String name,
+        int priority,
+        Optional<Duration> expectedDuration)
+    {
+        return executor.submit(priority, expectedDuration, () -> {
+            started.add(name);
+            return name;
+        });
+    }
+}
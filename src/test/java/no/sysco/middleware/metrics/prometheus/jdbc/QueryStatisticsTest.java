@@ -0,0 +1,89 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableConnectionDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableJob;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableQueryDef;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.QueryString;
+
+class QueryStatisticsTest {
+
+    @Test
+    void exposesRefreshIntervalsWithRedactedConnections() {
+        final var queryDef = ImmutableQueryDef.builder()
+            .name("q")
+            .addValues("v")
+            .query(QueryString.query("select 1"))
+            .build();
+        final var connDef = ImmutableConnectionDef.builder().url("jdbc:x://scott:tiger@db/app").build();
+        final var job = ImmutableJob.builder().name("j").addConnections(connDef).addQueries(queryDef).build();
+        final var underTest = new QueryStatistics("test");
+
+        final var entry = underTest.get(CacheKey.of(job, queryDef, connDef), "test.yml");
+        assertThat(entry.averageDuration(), is(Optional.empty()));
+        assertThat(underTest.collect(), hasSize(0));
+
+        entry.recordExecution(Duration.ofMillis(100));
+        entry.recordExecution(Duration.ofMillis(200));
+        entry.setRefreshInterval(Duration.ofSeconds(5));
+
+        assertThat(entry.averageDuration(), is(Optional.of(Duration.ofMillis(130))));
+        final var samples = underTest.collect().get(0).samples;
+        assertThat(samples, hasSize(1));
+        assertThat(samples.get(0).labelValues, is(List.of("j", "q", "jdbc:x://***@db/app")));
+        assertThat(samples.get(0).value, is(5d));
+    }
+
+    @Test
+    void ranksQueriesByTotalTime() {
+        final var connDef = ImmutableConnectionDef.builder().url("jdbc:x").build();
+        final var fast = ImmutableQueryDef.builder().name("fast").addValues("v").query(QueryString.query("1")).build();
+        final var slow = ImmutableQueryDef.builder().name("slow").addValues("v").query(QueryString.query("2")).build();
+        final var job = ImmutableJob.builder().name("j").addConnections(connDef).addQueries(fast, slow).build();
+        final var underTest = new QueryStatistics("test");
+
+        final var fastEntry = underTest.get(CacheKey.of(job, fast, connDef), "test.yml");
+        final var slowEntry = underTest.get(CacheKey.of(job, slow, connDef), "test.yml");
+        for (int i = 1; i <= 100; i++) {
+            fastEntry.recordExecution(Duration.ofMillis(1));
+            slowEntry.recordExecution(Duration.ofMillis(i));
+        }
+
+        final var summaries = underTest.summaries(1);
+        assertThat(summaries, hasSize(1));
+        assertThat(summaries.get(0).get("query"), is("slow"));
+        assertThat(summaries.get(0).get("source"), is("test.yml"));
+        assertThat(summaries.get(0).get("executions"), is(100L));
+        assertThat((double) summaries.get(0).get("p50_seconds"), closeTo(0.05, 0.05 * 0.07));
+        assertThat((double) summaries.get(0).get("max_seconds"), closeTo(0.1, 0.1 * 0.07));
+    }
+
+    @Test
+    void discardsStatisticsOfRemovedQueries() {
+        final var connDef = ImmutableConnectionDef.builder().url("jdbc:x").build();
+        final var kept = ImmutableQueryDef.builder().name("kept").addValues("v").query(QueryString.query("1")).build();
+        final var gone = ImmutableQueryDef.builder().name("gone").addValues("v").query(QueryString.query("2")).build();
+        final var job = ImmutableJob.builder().name("j").addConnections(connDef).addQueries(kept, gone).build();
+        final var underTest = new QueryStatistics("test");
+
+        underTest.get(CacheKey.of(job, kept, connDef), "test.yml").setRefreshInterval(Duration.ofSeconds(5));
+        underTest.get(CacheKey.of(job, gone, connDef), "test.yml").setRefreshInterval(Duration.ofSeconds(5));
+        underTest.retain(Set.of(CacheKey.of(job, kept, connDef)));
+
+        final var summaries = underTest.summaries(10);
+        assertThat(summaries, hasSize(1));
+        assertThat(summaries.get(0).get("query"), is("kept"));
+        assertThat(underTest.collect().get(0).samples, hasSize(1));
+    }
+}
@@ -0,0 +1,80 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.BDDMockito.willAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.prometheus.client.CollectorRegistry;
+
+class ReadinessServletTest {
+
+    @BeforeEach
+    void setUp() {
+        CollectorRegistry.defaultRegistry.clear();
+    }
+
+    @Test
+    void isNotReadyUntilWarmUpHasRun() throws IOException {
+        final var readiness = new ReadinessServlet();
+        final var collector = mock(JdbcCollector.class);
+        final var statusDuringWarmUp = new int[1];
+        willAnswer(invocation -> statusDuringWarmUp[0] = status(readiness)).given(collector).warmUp();
+
+        assertThat(status(readiness), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        WebServer.warmUp(collector, ImmutableExporterSettings.builder().warmUp(true).build(), readiness);
+
+        verify(collector).warmUp();
+        assertThat(statusDuringWarmUp[0], is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+        assertThat(status(readiness), is(HttpServletResponse.SC_OK));
+    }
+
+    @Test
+    void recordsWarmUpDuration(@TempDir Path dir) throws IOException {
+        final var config = Files.writeString(
+            dir.resolve("config.yml"),
+            String.join(
+                "\n",
+                "jobs:",
+                "- name: warm",
+                "  connections:",
+                "  - url: 'jdbc:h2:mem:warm'",
+                "  queries:",
+                "  - name: one",
+                "    values: [v]",
+                "    query: SELECT 1 AS v",
+                ""));
+        final var collector = new JdbcCollector("test", config);
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("test_warmup_duration_seconds"), is(0d));
+
+        collector.warmUp();
+
+        assertThat(CollectorRegistry.defaultRegistry.getSampleValue("test_warmup_duration_seconds"), greaterThan(0d));
+    }
+
+    private static int status(ReadinessServlet readiness) throws IOException {
+        final var response = mock(HttpServletResponse.class);
+        final var status = new int[1];
+        given(response.getWriter()).willReturn(new PrintWriter(new StringWriter()));
+        willAnswer(invocation -> status[0] = invocation.getArgument(0)).given(response).setStatus(anyInt());
+        readiness.doGet(mock(HttpServletRequest.class), response);
+        return status[0];
+    }
+}
@@ -0,0 +1,108 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import no.sysco.middleware.metrics.prometheus.jdbc.config.ImmutableRelabelRule;
+import no.sysco.middleware.metrics.prometheus.jdbc.config.RelabelAction;
+
+class RelabelerTest {
+
+    @Test
+    void rewritesAndDropsLabels() {
+        final var relabeler = new Relabeler(
+            List.of("schema", "table"),
+            List.of(
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("schema")
+                    .regex("tmp_.*")
+                    .action(RelabelAction.DROP)
+                    .build(),
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("schema", "table")
+                    .regex("(.*);(.*)_\\d+")
+                    .targetLabel("table")
+                    .replacement("$1.$2")
+                    .build(),
+                ImmutableRelabelRule.builder().regex("sch.*").action(RelabelAction.LABELDROP).build()));
+
+        assertThat(relabeler.outputNames, is(List.of("table")));
+        assertThat(relabeler.apply(values(relabeler, "app", "orders_2020")), arrayContaining("app.orders"));
+        assertThat(relabeler.apply(values(relabeler, "app", "users")), arrayContaining("users"));
+        assertThat(relabeler.apply(values(relabeler, "tmp_x", "users")), is(nullValue()));
+    }
+
+    @Test
+    void expandsReplacementsLikePrometheus() {
+        final var relabeler = new Relabeler(
+            List.of("instance", "cost"),
+            List.of(
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("instance")
+                    .regex("(?<host>[^:]+)(:\\d+)?")
+                    .targetLabel("instance")
+                    .replacement("${1}:9100")
+                    .build(),
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("instance")
+                    .regex("(?<host>[^:]+):(\\d+)")
+                    .targetLabel("__host")
+                    .replacement("${host} $2")
+                    .build(),
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("__host", "cost")
+                    .regex("(.*);(.*)")
+                    .targetLabel("cost")
+                    .replacement("$2$ at $$1 on $1")
+                    .build()));
+
+        assertThat(
+            relabeler.apply(values(relabeler, "db1:5432", "12")),
+            arrayContaining("db1:9100", "12$ at $1 on db1 9100"));
+    }
+
+    @Test
+    void rejectsReplacementsOfMissingGroups() {
+        final var rule = ImmutableRelabelRule.builder().addSourceLabels("table").regex("(.*)").targetLabel("table");
+
+        assertThrows(IllegalArgumentException.class, () -> rule.replacement("$2").build());
+        assertThrows(IllegalArgumentException.class, () -> rule.replacement("$1x").build());
+        assertThrows(IllegalArgumentException.class, () -> rule.replacement("${name}").build());
+        assertThat(rule.replacement("${1}x").build().replacement(), is("${1}x"));
+    }
+
+    @Test
+    void shardsByHashLikePrometheus() {
+        final var relabeler = new Relabeler(
+            List.of("table"),
+            List.of(
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("table")
+                    .targetLabel("__shard")
+                    .modulus(4L)
+                    .action(RelabelAction.HASHMOD)
+                    .build(),
+                ImmutableRelabelRule.builder()
+                    .addSourceLabels("__shard")
+                    .regex("3")
+                    .action(RelabelAction.KEEP)
+                    .build()));
+
+        assertThat(relabeler.width, is(2));
+        assertThat(relabeler.outputNames, is(List.of("table")));
+        assertThat(relabeler.apply(values(relabeler, "orders")), arrayContaining("orders"));
+        assertThat(relabeler.apply(values(relabeler, "a;b")), is(nullValue()));
+    }
+
+    private static String[] values(Relabeler relabeler, String... values) {
+        return Arrays.copyOf(values, relabeler.width);
+    }
+}
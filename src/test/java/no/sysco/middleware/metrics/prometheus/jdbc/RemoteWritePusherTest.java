@@ -0,0 +1,104 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.xerial.snappy.Snappy;
+
+import com.sun.net.httpserver.HttpServer;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+
+class RemoteWritePusherTest {
+
+    private HttpServer receiver;
+    private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+    private final AtomicInteger failuresToSimulate = new AtomicInteger();
+
+    @BeforeEach
+    void startReceiver() throws IOException {
+        receiver = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        receiver.createContext("/api/v1/write", exchange -> {
+            final var body = exchange.getRequestBody().readAllBytes();
+            if (failuresToSimulate.getAndDecrement() > 0) {
+                exchange.sendResponseHeaders(503, -1);
+            } else {
+                assertThat(exchange.getRequestHeaders().getFirst("Content-Encoding"), is("snappy"));
+                received.add(Snappy.uncompress(body));
+                exchange.sendResponseHeaders(204, -1);
+            }
+            exchange.close();
+        });
+        receiver.start();
+    }
+
+    @AfterEach
+    void stopReceiver() {
+        receiver.stop(0);
+    }
+
+    @Test
+    void pushesCollectedSamples() throws Exception {
+        final var registry = new CollectorRegistry();
+        Gauge.build().name("test_gauge").help("help").labelNames("l").register(registry).labels("v").set(42);
+        failuresToSimulate.set(1);
+
+        try (final var pusher = new RemoteWritePusher("test", registry, settings(), Clock.systemUTC())) {
+            pusher.start();
+
+            // samples may be split across several requests
+            final var requests = new StringBuilder();
+            while (!requests.toString().contains("test_gauge")) {
+                final var request = received.poll(10, TimeUnit.SECONDS);
+                assertThat("request received", request != null);
+                requests.append(new String(request, UTF_8));
+            }
+            assertThat(requests.toString(), containsString("__name__"));
+        }
+
+        assertThat(registry.getSampleValue("test_remote_write_send_failures_total"), is(1d));
+    }
+
+    @Test
+    void encodesSamplesAsProtobuf() {
+        final var series = new RemoteWriteEncoder.Series(Map.of("__name__", "a", "b", "c"), 1d, 2L);
+
+        final var encoded = RemoteWriteEncoder.encode(List.of(series));
+
+        assertThat(
+            encoded,
+            is(
+                new byte[] {
+                    0x0a, 0x24, // timeseries, 36 bytes
+                    0x0a, 0x0d, 0x0a, 0x08, '_', '_', 'n', 'a', 'm', 'e', '_', '_', 0x12, 0x01, 'a', // label
+                    0x0a, 0x06, 0x0a, 0x01, 'b', 0x12, 0x01, 'c', // label
+                    0x12, 0x0b, 0x09, 0, 0, 0, 0, 0, 0, (byte) 0xf0, 0x3f, 0x10, 0x02, // sample
+                }));
+    }
+
+    private ExporterSettings settings() {
+        return ImmutableExporterSettings.builder()
+            .remoteWriteUrl(URI.create("http://127.0.0.1:" + receiver.getAddress().getPort() + "/api/v1/write"))
+            .remoteWriteInterval(Duration.ofSeconds(1))
+            .remoteWriteTimeout(Duration.ofSeconds(5))
+            .build();
+    }
+}
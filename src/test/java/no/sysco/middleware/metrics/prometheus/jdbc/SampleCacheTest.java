@@ -0,0 +1,70 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+class SampleCacheTest {
+
+    private static final Instant NOW = Instant.parse("2020-01-01T00:00:00Z");
+
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private final SampleCache cache =
+        new SampleCache("test", ImmutableExporterSettings.builder().cacheMaxSamples(5).build(), registry);
+
+    @Test
+    void evictsLeastRecentlyUsedBeyondMaxWeight() {
+        final var a = result(2);
+        cache.put("a", a, NOW.plusSeconds(60), NOW);
+        cache.put("b", result(2), NOW.plusSeconds(60), NOW);
+        cache.get("a", NOW);
+        cache.put("c", result(2), NOW.plusSeconds(60), NOW);
+
+        assertThat(cache.get("a", NOW), is(Optional.of(a)));
+        assertThat(cache.get("b", NOW).isPresent(), is(false));
+        assertThat(cache.weight(), is(4L));
+        assertThat(evictions("size"), is(1d));
+
+        cache.put("d", result(6), NOW.plusSeconds(60), NOW);
+        assertThat(cache.get("d", NOW).isPresent(), is(false));
+        assertThat(cache.size(), is(2));
+    }
+
+    @Test
+    void expiresEntries() {
+        cache.put("a", result(1), NOW.plusSeconds(10), NOW);
+        cache.put("b", result(1), NOW.plusSeconds(60), NOW);
+
+        assertThat(cache.get("a", NOW.plusSeconds(10)).isPresent(), is(false));
+        cache.expire(NOW.plusSeconds(60));
+
+        assertThat(cache.size(), is(0));
+        assertThat(registry.getSampleValue("test_cache_weight_samples"), is(0d));
+        assertThat(evictions("expired"), is(2d));
+    }
+
+    private Double evictions(String reason) {
+        return registry.getSampleValue("test_cache_evictions_total", new String[] { "reason" }, new String[] { reason });
+    }
+
+    private static SampleResult result(int samples) {
+        final var list = new ArrayList<Collector.MetricFamilySamples.Sample>();
+        for (int i = 0; i < samples; i++) {
+            list.add(new Collector.MetricFamilySamples.Sample("s", List.of("i"), List.of(String.valueOf(i)), i));
+        }
+        final var result = new SampleResult(NOW);
+        result.samples = ColumnarSamples.of(
+            List.of(new Collector.MetricFamilySamples("s", Collector.Type.GAUGE, "help", list)),
+            false);
+        return result;
+    }
+}
@@ -0,0 +1,47 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class ScrapeDeadlineTest {
+
+    private static final Duration OFFSET = Duration.ofMillis(500);
+
+    @Test
+    void takesTimeoutFromHeaderOrDefault() {
+        assertThat(ScrapeDeadline.of(null, Optional.empty(), OFFSET).isPresent(), is(false));
+        assertThat(ScrapeDeadline.of("not a number", Optional.empty(), OFFSET).isPresent(), is(false));
+
+        final var remaining = ScrapeDeadline.of("10.5", Optional.of(Duration.ofSeconds(1)), OFFSET)
+            .orElseThrow()
+            .remaining();
+        assertThat(remaining, lessThanOrEqualTo(Duration.ofSeconds(10)));
+        assertThat(remaining, greaterThan(Duration.ofSeconds(9)));
+
+        assertThat(ScrapeDeadline.of(null, Optional.of(Duration.ofSeconds(30)), OFFSET).orElseThrow().isExpired(), is(false));
+        // the offset never results in a deadline in the past
+        assertThat(ScrapeDeadline.of("0.1", Optional.empty(), OFFSET).orElseThrow().remaining(), is(Duration.ZERO));
+    }
+
+    @Test
+    void bindsDeadlineToCurrentThreadAndRunsCancellations() throws Exception {
+        final var deadline = ScrapeDeadline.after(Duration.ofMillis(10));
+
+        assertThat(ScrapeDeadline.call(Optional.of(deadline), ScrapeDeadline::current), is(Optional.of(deadline)));
+        assertThat(ScrapeDeadline.current().isPresent(), is(false));
+
+        final var cancelled = new CountDownLatch(1);
+        deadline.schedule(cancelled::countDown);
+        assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(deadline.isExpired(), is(true));
+    }
+}
@@ -0,0 +1,43 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+import org.junit.jupiter.api.Test;
+
+class ShardSelectorTest {
+
+    @Test
+    void distributesKeysEvenly() {
+        final var counts = new int[4];
+        for (int i = 0; i < 10_000; i++) {
+            counts[new ShardSelector(0, 4).ownerOf("job\0jdbc:test:" + i)]++;
+        }
+
+        for (final var count : counts) {
+            assertThat(count, is(both(greaterThan(2_200)).and(lessThan(2_800))));
+        }
+    }
+
+    @Test
+    void movesKeysOnlyToAddedReplica() {
+        final var before = new ShardSelector(0, 4);
+        final var after = new ShardSelector(0, 5);
+
+        var moved = 0;
+        for (int i = 0; i < 10_000; i++) {
+            final var key = "job\0jdbc:test:" + i;
+            final var oldOwner = before.ownerOf(key);
+            final var newOwner = after.ownerOf(key);
+            if (oldOwner != newOwner) {
+                assertThat(newOwner, is(4));
+                moved++;
+            }
+        }
+
+        assertThat(moved, is(both(greaterThan(1_700)).and(lessThan(2_300))));
+    }
+}
@@ -0,0 +1,90 @@
+package no.sysco.middleware.metrics.prometheus.jdbc;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.sql.Connection;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class TargetConnectionPoolsTest {
+
+    @Test
+    void reusesIdleConnectionsPerTarget(@Mock ConnectionProvider delegate) throws Exception {
+        final var physical = mock(Connection.class);
+        given(delegate.getConnection(anyString(), anyMap())).willReturn(physical);
+        given(physical.isValid(anyInt())).willReturn(true);
+        final var pools = new TargetConnectionPools(delegate, 10, 1, Duration.ofMinutes(1), Clock.systemUTC());
+
+        final var first = pools.getConnection("a", Map.of());
+        first.close();
+        assertThat(first.isClosed(), is(true));
+        final var second = pools.getConnection("a", Map.of());
+        second.close();
+
+        verify(delegate, times(1)).getConnection("a", Map.of());
+        verify(physical, never()).close();
+        assertThat(pools.idleCount(), is(1));
+
+        pools.close();
+        verify(physical).close();
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedTargets(@Mock ConnectionProvider delegate) throws Exception {
+        final var a = mock(Connection.class);
+        final var b = mock(Connection.class);
+        given(delegate.getConnection("a", Map.of())).willReturn(a);
+        given(delegate.getConnection("b", Map.of())).willReturn(b);
+        final var pools = new TargetConnectionPools(delegate, 1, 1, Duration.ofMinutes(1), Clock.systemUTC());
+
+        pools.getConnection("a", Map.of()).close();
+        pools.getConnection("b", Map.of()).close();
+
+        verify(a).close();
+        verify(b, never()).close();
+        assertThat(pools.targetCount(), is(1));
+    }
+
+    @Test
+    void evictsExpiredAndInvalidConnections(@Mock ConnectionProvider delegate, @Mock Clock clock) throws Exception {
+        final var a = mock(Connection.class);
+        final var b = mock(Connection.class);
+        final var c = mock(Connection.class);
+        given(delegate.getConnection("a", Map.of())).willReturn(a);
+        given(delegate.getConnection("b", Map.of())).willReturn(b).willReturn(c);
+        given(b.isValid(anyInt())).willReturn(false);
+        given(c.isValid(anyInt())).willReturn(true);
+        final var now = Instant.parse("2020-01-01T00:00:00Z");
+        given(clock.instant()).willReturn(now);
+        final var pools = new TargetConnectionPools(delegate, 10, 1, Duration.ofMinutes(1), clock);
+
+        pools.getConnection("a", Map.of()).close();
+        pools.getConnection("b", Map.of()).close();
+        given(clock.instant()).willReturn(now.plusSeconds(30));
+        pools.getConnection("b", Map.of()).close();
+        given(clock.instant()).willReturn(now.plusSeconds(85));
+        pools.getConnection("b", Map.of());
+
+        verify(a).close();
+        verify(b).close();
+        verify(c, never()).close();
+        verify(delegate, times(2)).getConnection("b", Map.of());
+    }
+}
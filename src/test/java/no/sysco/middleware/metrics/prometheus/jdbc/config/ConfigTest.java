@@ -1,7 +1,10 @@
 package no.sysco.middleware.metrics.prometheus.jdbc.config;
 
+import static java.util.stream.Collectors.toList;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -9,6 +12,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.jupiter.api.Test;
@@ -324,6 +328,308 @@ class ConfigTest {
         assertThrows(IllegalArgumentException.class, () -> parseConfig(config));
     }
 
+    @Test
+    void testConfigShouldBuildWithHistogramType() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: jdbc\n" + //
+            "    type: histogram\n" + //
+            "    buckets: [0.1, 1, 10]\n" + //
+            "    values:\n" + //
+            "    - v1\n" + //
+            "    query: abc\n" + //
+            "");
+
+        final var expected = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("global")
+                    .addConnections(ImmutableConnectionDef.builder().url("jdbc").build())
+                    .addQueries(
+                        ImmutableQueryDef.builder()
+                            .name("jdbc")
+                            .type(MetricType.HISTOGRAM)
+                            .addBuckets(0.1, 1d, 10d)
+                            .addValues("v1")
+                            .query(QueryString.query("abc"))
+                            .build())
+                    .build())
+            .build();
+
+        assertThat(parsed, is(equalTo(expected)));
+    }
+
+    @Test
+    void testConfigShouldFailWithUnorderedBuckets() {
+        final var config = "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: jdbc\n" + //
+            "    type: histogram\n" + //
+            "    buckets: [10, 1]\n" + //
+            "    values:\n" + //
+            "    - v1\n" + //
+            "    query: abc\n" + //
+            "";
+
+        assertThrows(IllegalArgumentException.class, () -> parseConfig(config));
+    }
+
+    @Test
+    void testConfigShouldFailWithInfiniteBuckets() {
+        final var config = "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: jdbc\n" + //
+            "    type: histogram\n" + //
+            "    buckets: [1, Infinity]\n" + //
+            "    values:\n" + //
+            "    - v1\n" + //
+            "    query: abc\n" + //
+            "";
+
+        assertThrows(IllegalArgumentException.class, () -> parseConfig(config));
+    }
+
+    @Test
+    void testConfigShouldBuildWithQueryGroup() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  query_groups:\n" + //
+            "  - name: tables\n" + //
+            "    query: abc\n" + //
+            "    cache_seconds: 60\n" + //
+            "    metrics:\n" + //
+            "    - name: table_rows\n" + //
+            "      labels: [table_name]\n" + //
+            "      values: [num_rows]\n" + //
+            "    - name: table_bytes\n" + //
+            "      labels: [table_name]\n" + //
+            "      values: [bytes]\n" + //
+            "");
+
+        final var expected = ImmutableConfig.builder()
+            .addJobs(
+                ImmutableJob.builder()
+                    .name("global")
+                    .addConnections(ImmutableConnectionDef.builder().url("jdbc").build())
+                    .addQueryGroups(
+                        ImmutableQueryGroup.builder()
+                            .name("tables")
+                            .query(QueryString.query("abc"))
+                            .cacheDuration(Duration.ofSeconds(60))
+                            .addMetrics(
+                                ImmutableMetricDef.builder()
+                                    .name("table_rows")
+                                    .addLabels("table_name")
+                                    .addValues("num_rows")
+                                    .build(),
+                                ImmutableMetricDef.builder()
+                                    .name("table_bytes")
+                                    .addLabels("table_name")
+                                    .addValues("bytes")
+                                    .build())
+                            .build())
+                    .build())
+            .build();
+
+        assertThat(parsed, is(equalTo(expected)));
+    }
+
+    @Test
+    void testConfigShouldFailIfQueryGroupMetricsEmpty() {
+        final var config = "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  query_groups:\n" + //
+            "  - name: tables\n" + //
+            "    query: abc\n" + //
+            "    metrics: []\n" + //
+            "";
+
+        assertThrows(IllegalArgumentException.class, () -> parseConfig(config));
+    }
+
+    @Test
+    void testConfigShouldBuildWithModulesOnly() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "modules:\n" + //
+            "- name: \"postgres\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc:postgresql://${target}\n" + //
+            "  queries:\n" + //
+            "  - name: up\n" + //
+            "    values: [up]\n" + //
+            "    query: select 1 as up\n" + //
+            "");
+
+        assertThat(parsed.jobs(), is(empty()));
+        assertThat(parsed.modules(), hasSize(1));
+        assertThat(parsed.modules().iterator().next().name(), is("postgres"));
+    }
+
+    @Test
+    void testConfigShouldFailWithDuplicateModules() {
+        final var config = "modules:\n" + //
+            "- name: \"postgres\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: up\n" + //
+            "    values: [up]\n" + //
+            "    query: select 1 as up\n" + //
+            "- name: \"postgres\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc2\n" + //
+            "  queries:\n" + //
+            "  - name: up\n" + //
+            "    values: [up]\n" + //
+            "    query: select 1 as up\n" + //
+            "";
+
+        assertThrows(IllegalArgumentException.class, () -> parseConfig(config));
+    }
+
+    @Test
+    void testConfigShouldBuildWithRelabelConfigs() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: table_rows\n" + //
+            "    labels: [table_name]\n" + //
+            "    values: [num_rows]\n" + //
+            "    query: abc\n" + //
+            "    relabel_configs:\n" + //
+            "    - source_labels: [table_name]\n" + //
+            "      regex: 'tmp_.*'\n" + //
+            "      action: drop\n" + //
+            "");
+
+        final var query = parsed.jobs().iterator().next().queries().iterator().next();
+        assertThat(
+            query.relabelConfigs(),
+            is(
+                List.of(
+                    ImmutableRelabelRule.builder()
+                        .addSourceLabels("table_name")
+                        .regex("tmp_.*")
+                        .action(RelabelAction.DROP)
+                        .build())));
+    }
+
+    @Test
+    void testConfigShouldFailWithInvalidRelabelConfigs() {
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutableRelabelRule.builder().addSourceLabels("a").action(RelabelAction.HASHMOD).build());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutableRelabelRule.builder().regex("a").targetLabel("b").replacement("$1").build());
+    }
+
+    @Test
+    void testConfigShouldBuildWithPartitions() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: order_count\n" + //
+            "    values: [n]\n" + //
+            "    query: abc\n" + //
+            "    partitions:\n" + //
+            "      from: 0\n" + //
+            "      to: 10\n" + //
+            "      buckets: 3\n" + //
+            "");
+
+        final var query = parsed.jobs().iterator().next().queries().iterator().next();
+        assertThat(
+            query.partitions().orElseThrow().variables(),
+            is(
+                List.of(
+                    Map.of("partition", "0", "partition_from", "0", "partition_to", "4"),
+                    Map.of("partition", "1", "partition_from", "4", "partition_to", "7"),
+                    Map.of("partition", "2", "partition_from", "7", "partition_to", "10"))));
+    }
+
+    @Test
+    void testConfigShouldFailWithInvalidPartitions() {
+        assertThrows(IllegalArgumentException.class, () -> ImmutablePartitions.builder().build());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutablePartitions.builder().addValues("a").rangeFrom(0L).rangeTo(10L).buckets(2).build());
+        assertThrows(IllegalArgumentException.class, () -> ImmutablePartitions.builder().addValues("a", "a").build());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutablePartitions.builder().rangeFrom(0L).rangeTo(2L).buckets(3).build());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutablePartitions.builder().rangeFrom(0L).buckets(3).build());
+    }
+
+    @Test
+    void testConfigShouldBuildWithAggregations() throws IOException {
+        final var parsed = parseConfig("---\n" + //
+            "jobs:\n" + //
+            "- name: \"global\"\n" + //
+            "  connections:\n" + //
+            "  - url: jdbc\n" + //
+            "  queries:\n" + //
+            "  - name: sessions\n" + //
+            "    labels: [status]\n" + //
+            "    values: [n]\n" + //
+            "    query: abc\n" + //
+            "    aggregations:\n" + //
+            "    - op: sum\n" + //
+            "      by: [status]\n" + //
+            "    - op: avg\n" + //
+            "      name: sessions_per_shard\n" + //
+            "    aggregate_only: true\n" + //
+            "");
+
+        final var query = parsed.jobs().iterator().next().queries().iterator().next();
+        assertThat(query.aggregateOnly(), is(true));
+        assertThat(
+            query.aggregations().stream().map(query::aggregationName).collect(toList()),
+            is(List.of("sessions_sum", "sessions_per_shard")));
+        assertThat(query.aggregations().get(0).by(), is(List.of("status")));
+    }
+
+    @Test
+    void testConfigShouldFailWithInvalidAggregations() {
+        final var sum = ImmutableAggregation.builder().op(AggregationOp.SUM).build();
+        assertThrows(IllegalArgumentException.class, () -> metric().aggregateOnly(true).build());
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> metric().type(MetricType.HISTOGRAM).addAggregations(sum).build());
+        assertThrows(IllegalArgumentException.class, () -> metric().addAggregations(sum, sum).build());
+        metric().addAggregations(sum).aggregateOnly(true).build();
+        assertThrows(
+            IllegalArgumentException.class,
+            () -> ImmutableAggregation.builder().op(AggregationOp.MAX).addBy("a", "a").build());
+    }
+
+    private static ImmutableMetricDef.Builder metric() {
+        return ImmutableMetricDef.builder().name("m").addValues("v");
+    }
+
     private static final Config parseConfig(String config) throws IOException {
         try (final var data = new ByteArrayInputStream(config.getBytes(StandardCharsets.UTF_8))) {
             return Config.parseYaml(data);